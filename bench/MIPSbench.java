@@ -0,0 +1,394 @@
+// Benchmark harness and synthetic workload generator for MIPSsim.
+// Build alongside the simulator: javac -d out src/*.java bench/*.java
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class MIPSbench {
+
+    // steady state stepping may allocate at most this much per step, measured against a ten times longer run
+    private static final double MAX_STEADY_BYTES_PER_STEP = 0.01;
+
+    // keeps formatted output observable so the JIT cannot drop it
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        BenchOptions opts = new BenchOptions(args);
+        switch (args[0]) {
+            case "generate":
+                if (opts.target == null) {
+                    usage();
+                    return;
+                }
+                opts.generator().write(Paths.get(opts.target));
+                break;
+            case "run":
+                run(opts);
+                break;
+            case "alloc":
+                if (!checkAllocation(opts)) {
+                    System.exit(1);
+                }
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: MIPSbench generate <dir> [generator options]");
+        System.err.println("       MIPSbench run [generator options] [--warmup N] [--iterations N]");
+        System.err.println("                     [--baseline file] [--save-baseline]");
+        System.err.println("       MIPSbench alloc [generator options] [--warmup N]");
+        System.err.println("generator options: --length N --ld-mix F --dep F --seed N");
+    }
+
+    private static void run(BenchOptions opts) throws IOException {
+        Path dir = Files.createTempDirectory("mipsbench");
+        opts.generator().write(dir);
+        String inm = dir.resolve(MIPSsim.FILENAME_INPUT_INSTRUCTIONS).toString();
+        String rgf = dir.resolve(MIPSsim.FILENAME_INPUT_REGISTER).toString();
+        String dam = dir.resolve(MIPSsim.FILENAME_INPUT_DATA_MEMORY).toString();
+
+        List<BenchResult> results = new ArrayList<>();
+        results.add(benchCycleLoop(opts, inm, rgf, dam));
+        results.add(benchParse(opts, inm, rgf, dam));
+        results.add(benchFormat(opts, inm, rgf, dam));
+        results.addAll(benchPlaces(opts, inm, rgf, dam));
+
+        Map<String, BenchResult> baseline = new LinkedHashMap<>();
+        Path baselineFile = opts.baseline == null ? null : Paths.get(opts.baseline);
+        if (baselineFile != null && Files.exists(baselineFile)) {
+            for (String line : Files.readAllLines(baselineFile)) {
+                BenchResult r = BenchResult.parse(line);
+                if (r != null) {
+                    baseline.put(r.name, r);
+                }
+            }
+        }
+
+        System.out.println(String.format("%-36s %16s %14s %s", "benchmark", "ops/sec", "bytes/op", "vs baseline"));
+        for (BenchResult r : results) {
+            System.out.println(String.format("%-36s %16.1f %14.1f %s", r.name, r.opsPerSec, r.bytesPerOp,
+                    r.compareTo(baseline.get(r.name))));
+        }
+
+        if (opts.saveBaseline && baselineFile != null) {
+            try (PrintStream ps = new PrintStream(baselineFile.toFile())) {
+                ps.println(BenchResult.HEADER);
+                for (BenchResult r : results) {
+                    ps.println(r.toCsv());
+                }
+            }
+        }
+    }
+
+    // Token pools should make steady state stepping allocate nothing. Runs a program of --length instructions and
+    // one ten times as long, and fails if the bytes allocated per step past the shorter run's are not ~0, so that
+    // fixed costs such as growing the pools while the pipeline fills do not count.
+    private static boolean checkAllocation(BenchOptions opts) throws IOException {
+        Path dir = Files.createTempDirectory("mipsbench");
+        Path shortDir = dir.resolve("short");
+        Path longDir = dir.resolve("long");
+        opts.generator().write(shortDir);
+        new ProgramGenerator(opts.length * 10, opts.ldMix, opts.dependency, opts.seed).write(longDir);
+
+        long[] shortRun = measureRun(opts, shortDir);
+        long[] longRun = measureRun(opts, longDir);
+        double bytesPerStep = (double) (longRun[1] - shortRun[1]) / Math.max(longRun[0] - shortRun[0], 1);
+        boolean flat = bytesPerStep <= MAX_STEADY_BYTES_PER_STEP;
+        System.out.println(String.format("%d steps: %d bytes, %d steps: %d bytes, %.4f bytes/step %s",
+                shortRun[0], shortRun[1], longRun[0], longRun[1], bytesPerStep, flat ? "OK" : "FAILED"));
+        return flat;
+    }
+
+    // { steps, bytes allocated by run() } of the last of --warmup + 1 runs, leaving out reading the inputs
+    private static long[] measureRun(BenchOptions opts, Path dir) throws IOException {
+        long[] result = null;
+        for (int i = 0; i <= opts.warmup; ++i) {
+            MIPSsim.Harness sim = new MIPSsim.Harness(dir.resolve(MIPSsim.FILENAME_INPUT_INSTRUCTIONS).toString(),
+                    dir.resolve(MIPSsim.FILENAME_INPUT_REGISTER).toString(),
+                    dir.resolve(MIPSsim.FILENAME_INPUT_DATA_MEMORY).toString());
+            Measurement m = new Measurement();
+            m.begin(true);
+            long steps = sim.run();
+            m.end(steps);
+            result = new long[] { steps, m.bytes() };
+        }
+        return result;
+    }
+
+    // full MIPSsim cycle loop; one op is one simulated cycle
+    private static BenchResult benchCycleLoop(BenchOptions opts, String inm, String rgf, String dam) throws IOException {
+        Measurement m = new Measurement();
+        for (int i = 0; i != opts.warmup + opts.iterations; ++i) {
+            MIPSsim.Harness sim = new MIPSsim.Harness(inm, rgf, dam);
+            m.begin(i >= opts.warmup);
+            long cycles = sim.run();
+            m.end(cycles);
+        }
+        return m.result("cycle");
+    }
+
+    // reading and decoding the three input files; one op is one Simulation construction
+    private static BenchResult benchParse(BenchOptions opts, String inm, String rgf, String dam) throws IOException {
+        Measurement m = new Measurement();
+        for (int i = 0; i != opts.warmup + opts.iterations; ++i) {
+            m.begin(i >= opts.warmup);
+            new MIPSsim.Harness(inm, rgf, dam);
+            m.end(1);
+        }
+        return m.result("parse");
+    }
+
+    // appendOutputLine on every place into a reused buffer, as the traced run does; one op is one formatted STEP block
+    private static BenchResult benchFormat(BenchOptions opts, String inm, String rgf, String dam) throws IOException {
+        Measurement m = new Measurement();
+        long sink = 0;
+        for (int i = 0; i != opts.warmup + opts.iterations; ++i) {
+            MIPSsim.Harness sim = new MIPSsim.Harness(inm, rgf, dam);
+            boolean stepsLeft;
+            do {
+                m.begin(i >= opts.warmup);
+                sink += sim.formatStep();
+                m.end(1);
+                stepsLeft = sim.stepOnce();
+            } while (stepsLeft);
+        }
+        blackhole = sink;
+        return m.result("format");
+    }
+
+    // each place's fillBuffer/step pair, measured in place while the whole net runs; one op is one pair
+    private static List<BenchResult> benchPlaces(BenchOptions opts, String inm, String rgf, String dam) throws IOException {
+        MIPSsim.Harness names = new MIPSsim.Harness(inm, rgf, dam);
+        Measurement[] ms = new Measurement[names.numPlaces()];
+        for (int j = 0; j != ms.length; ++j) {
+            ms[j] = new Measurement();
+        }
+        for (int i = 0; i != opts.warmup + opts.iterations; ++i) {
+            boolean measured = i >= opts.warmup;
+            MIPSsim.Harness sim = new MIPSsim.Harness(inm, rgf, dam);
+            boolean stepsLeft;
+            do {
+                for (int j = 0; j != ms.length; ++j) {
+                    ms[j].begin(measured);
+                    sim.fillBuffer(j);
+                    ms[j].pause();
+                }
+                stepsLeft = false;
+                for (int j = 0; j != ms.length; ++j) {
+                    ms[j].resume();
+                    if (sim.step(j)) {
+                        stepsLeft = true;
+                    }
+                    ms[j].end(1);
+                }
+            } while (stepsLeft);
+        }
+        List<BenchResult> results = new ArrayList<>();
+        for (int j = 0; j != ms.length; ++j) {
+            results.add(ms[j].result("place." + names.placeName(j)));
+        }
+        return results;
+    }
+}
+
+class BenchOptions {
+    String target = null;
+    int length = 100_000;
+    double ldMix = 0.3;
+    double dependency = 0.5;
+    long seed = 1;
+    int warmup = 3;
+    int iterations = 5;
+    String baseline = null;
+    boolean saveBaseline = false;
+
+    BenchOptions(String[] args) {
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--length": length = Integer.parseInt(args[++i]); break;
+                case "--ld-mix": ldMix = Double.parseDouble(args[++i]); break;
+                case "--dep": dependency = Double.parseDouble(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--baseline": baseline = args[++i]; break;
+                case "--save-baseline": saveBaseline = true; break;
+                default:
+                    if (args[i].startsWith("--") || target != null) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    target = args[i];
+            }
+        }
+    }
+
+    ProgramGenerator generator() {
+        return new ProgramGenerator(length, ldMix, dependency, seed);
+    }
+}
+
+// Times a section of code and counts the bytes the current thread allocated inside it.
+class Measurement {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long threadId = Thread.currentThread().getId();
+    private boolean active;
+    private long startNanos;
+    private long startBytes;
+    private long nanos;
+    private long bytes;
+    private long ops;
+
+    void begin(boolean measured) {
+        active = measured;
+        resume();
+    }
+
+    void resume() {
+        if (active) {
+            startBytes = THREADS.getThreadAllocatedBytes(threadId);
+            startNanos = System.nanoTime();
+        }
+    }
+
+    void pause() {
+        if (active) {
+            nanos += System.nanoTime() - startNanos;
+            bytes += THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+        }
+    }
+
+    void end(long opsDone) {
+        if (active) {
+            pause();
+            ops += opsDone;
+        }
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    BenchResult result(String name) {
+        return new BenchResult(name, ops / (Math.max(nanos, 1) / 1e9), (double) bytes / Math.max(ops, 1));
+    }
+}
+
+class BenchResult {
+    static final String HEADER = "benchmark,ops_per_sec,bytes_per_op";
+    private static final double REGRESSION_THRESHOLD = 0.10;
+
+    final String name;
+    final double opsPerSec;
+    final double bytesPerOp;
+
+    BenchResult(String name, double opsPerSec, double bytesPerOp) {
+        this.name = name;
+        this.opsPerSec = opsPerSec;
+        this.bytesPerOp = bytesPerOp;
+    }
+
+    static BenchResult parse(String line) {
+        String[] tokens = line.split(",");
+        if (tokens.length != 3 || line.equals(HEADER)) {
+            return null;
+        }
+        return new BenchResult(tokens[0], Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]));
+    }
+
+    String toCsv() {
+        return name + "," + opsPerSec + "," + bytesPerOp;
+    }
+
+    // flags a drop in throughput or a rise in allocation beyond the threshold
+    String compareTo(BenchResult base) {
+        if (base == null) {
+            return "";
+        }
+        double speed = opsPerSec / base.opsPerSec - 1;
+        String out = String.format("%+.1f%% ops/sec, %+.1f bytes/op", speed * 100, bytesPerOp - base.bytesPerOp);
+        if (speed < -REGRESSION_THRESHOLD || bytesPerOp > base.bytesPerOp * (1 + REGRESSION_THRESHOLD) + 1) {
+            out += "  REGRESSION";
+        }
+        return out;
+    }
+}
+
+// Emits a random program with its register and data memory files. Loads always address through R0 and R1,
+// which are never written, so addresses stay inside data memory.
+class ProgramGenerator {
+    private static final String[] ALU_OPS = { "ADD", "SUB", "AND", "OR" };
+    private static final int NUM_REGS = 8;
+    private static final int FIRST_WRITABLE = 2;
+    private static final int DEPENDENCY_WINDOW = 4;
+
+    private final int length;
+    private final double ldMix;
+    private final double dependency;
+    private final Random random;
+
+    ProgramGenerator(int length, double ldMix, double dependency, long seed) {
+        this.length = length;
+        this.ldMix = ldMix;
+        this.dependency = dependency;
+        this.random = new Random(seed);
+    }
+
+    void write(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        int[] recentDests = new int[DEPENDENCY_WINDOW];
+        int numRecent = 0;
+        try (PrintStream ps = new PrintStream(dir.resolve(MIPSsim.FILENAME_INPUT_INSTRUCTIONS).toFile())) {
+            for (int i = 0; i != length; ++i) {
+                int dest = FIRST_WRITABLE + random.nextInt(NUM_REGS - FIRST_WRITABLE);
+                if (random.nextDouble() < ldMix) {
+                    ps.println("<LD,R" + dest + ",R0,R1>");
+                } else {
+                    String op = ALU_OPS[random.nextInt(ALU_OPS.length)];
+                    int src1 = pickSource(recentDests, numRecent);
+                    int src2 = pickSource(recentDests, numRecent);
+                    ps.println("<" + op + ",R" + dest + ",R" + src1 + ",R" + src2 + ">");
+                }
+                recentDests[i % DEPENDENCY_WINDOW] = dest;
+                numRecent = Math.min(numRecent + 1, DEPENDENCY_WINDOW);
+            }
+        }
+        try (PrintStream ps = new PrintStream(dir.resolve(MIPSsim.FILENAME_INPUT_REGISTER).toFile())) {
+            ps.println("<R0,0>");
+            ps.println("<R1," + random.nextInt(NUM_REGS) + ">");
+            for (int r = FIRST_WRITABLE; r != NUM_REGS; ++r) {
+                ps.println("<R" + r + "," + random.nextInt(128) + ">");
+            }
+        }
+        try (PrintStream ps = new PrintStream(dir.resolve(MIPSsim.FILENAME_INPUT_DATA_MEMORY).toFile())) {
+            for (int a = 0; a != NUM_REGS; ++a) {
+                ps.println("<" + a + "," + random.nextInt(128) + ">");
+            }
+        }
+    }
+
+    // with probability `dependency`, read a register written by one of the last few instructions
+    private int pickSource(int[] recentDests, int numRecent) {
+        if (numRecent > 0 && random.nextDouble() < dependency) {
+            return recentDests[random.nextInt(numRecent)];
+        }
+        return random.nextInt(NUM_REGS);
+    }
+}
@@ -0,0 +1,54 @@
+// Flight Recorder events for MIPSsim --profile. jdk.jfr needs JDK 11 or later, so this stays out of src/;
+// build it in with: javac -d out src/*.java jfr/*.java
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Found by PlaceProfiler by name. Only --profile wraps the places, so a recording such as
+// -XX:StartFlightRecording=filename=sim.jfr picks these up on profiled runs alone.
+public class PlaceEventRecorder implements MIPSsim.PlaceRecorder {
+
+    @Override
+    public Object begin() {
+        PlaceEvent event = new PlaceEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(Object call, String place, String operation, long allocated) {
+        PlaceEvent event = (PlaceEvent) call;
+        event.end();
+        event.commit(place, operation, allocated);
+    }
+}
+
+// One fillBuffer, step or appendOutputLine of a place
+@Name("MIPSsim.PlaceOperation")
+@Label("Place Operation")
+@Category("MIPSsim")
+@Description("One fillBuffer, step or getOutputLine call of a Petri net place")
+class PlaceEvent extends Event {
+    @Label("Place")
+    String place;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    void commit(String place, String operation, long allocated) {
+        if (shouldCommit()) {
+            this.place = place;
+            this.operation = operation;
+            this.allocated = allocated;
+            commit();
+        }
+    }
+}
@@ -1,307 +1,4521 @@
 // Created by Max Fresonke for CD4630
 // "I have neither given nor received any unauthorized aid on this assignment"
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 public class MIPSsim {
 
-    private static final String FILENAME_INPUT_INSTRUCTIONS = "instructions.txt";
-    private static final String FILENAME_INPUT_REGISTER = "registers.txt";
-    private static final String FILENAME_INPUT_DATA_MEMORY = "datamemory.txt";
-    private static final String FILENAME_OUTPUT_SIMULATION = "simulation.txt";
-    private static final int NUM_REGS = 8;
+    static final String FILENAME_INPUT_INSTRUCTIONS = "instructions.txt";
+    static final String FILENAME_INPUT_REGISTER = "registers.txt";
+    static final String FILENAME_INPUT_DATA_MEMORY = "datamemory.txt";
+    static final String FILENAME_OUTPUT_SIMULATION = "simulation.txt";
+    static final String FILENAME_OUTPUT_HEADLESS = "final.txt";
+    static final String FILENAME_OUTPUT_BINARY_TRACE = "simulation.mtr";
+
+    // bump whenever a change alters any output for the same input; it is part of every result cache key
+    static final String VERSION = "17";
+
+    public static void main(String[] args) throws IOException {
+        SimOptions opts = SimOptions.parse(args);
+        if (opts.profile != null) {
+            opts.profiler = new PlaceProfiler();
+        }
+        try {
+            dispatch(opts);
+        } finally {
+            if (opts.profiler != null) {
+                opts.profiler.write(Paths.get(opts.profile));
+            }
+        }
+    }
+
+    private static void dispatch(SimOptions opts) throws IOException {
+        if (opts.decode != null) {
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+            if (opts.decodeStep >= 0) {
+                DeltaTraceReader.decodeStep(opts.decode, opts.decodeStep, out);
+            } else {
+                DeltaTraceReader.decodeAll(opts.decode, out);
+            }
+            out.flush();
+            return;
+        }
+
+        if (opts.sweep != null) {
+            new LockstepSweep(opts).run(FILENAME_INPUT_INSTRUCTIONS, Paths.get(opts.sweep));
+            return;
+        }
+
+        if (opts.serve) {
+            new SimulationServer(opts, System.out).serve(System.in);
+            return;
+        }
+
+        if (opts.batch != null) {
+            int failed = new BatchRunner(opts).run(BatchJob.load(Paths.get(opts.batch), opts.headless, opts.binaryTrace));
+            if (failed != 0) {
+                if (opts.profiler != null) {
+                    opts.profiler.write(Paths.get(opts.profile));
+                }
+                System.exit(1);
+            }
+            return;
+        }
+
+        String output = opts.binaryTrace ? FILENAME_OUTPUT_BINARY_TRACE : FILENAME_OUTPUT_SIMULATION;
+        BatchRunner.runJob(new BatchJob("", FILENAME_INPUT_INSTRUCTIONS, FILENAME_INPUT_REGISTER, FILENAME_INPUT_DATA_MEMORY, output),
+                opts, System.out);
+    }
+
+    // One simulation as the benchmark harness in bench/ drives it. The simulator's own types are not visible
+    // outside this file, so everything the harness times goes through here.
+    public static final class Harness {
+        private final Simulation sim;
+        private final Steppable[] steps;
+        private final OutputLiner[] outputs;
+        private final AsciiBuffer text = new AsciiBuffer();
+
+        public Harness(String instructionsFile, String registersFile, String dataMemoryFile) throws IOException {
+            sim = new Simulation(instructionsFile, registersFile, dataMemoryFile);
+            steps = sim.getSteppables();
+            outputs = sim.getOutputLiners();
+        }
+
+        // runs to completion on the simulation's own engine, returning the number of steps
+        public int run() {
+            return sim.run();
+        }
+
+        public int numPlaces() {
+            return steps.length;
+        }
+
+        public String placeName(int place) {
+            return steps[place].getClass().getSimpleName();
+        }
+
+        public void fillBuffer(int place) {
+            steps[place].fillBuffer();
+        }
+
+        public boolean step(int place) {
+            return steps[place].step();
+        }
+
+        // every place's trace line, formatted as a traced step does into a reused buffer; returns its length
+        public int formatStep() {
+            text.setLength(0);
+            for (OutputLiner o : outputs) {
+                o.appendOutputLine(text);
+                text.append('\n');
+            }
+            return text.length();
+        }
+
+        // one cycle over every place, without the scheduler; returns true if any place stepped
+        public boolean stepOnce() {
+            for (Steppable s : steps) {
+                s.fillBuffer();
+            }
+            boolean stepsLeft = false;
+            for (Steppable s : steps) {
+                if (s.step()) {
+                    stepsLeft = true;
+                }
+            }
+            return stepsLeft;
+        }
+    }
+
+    // Turns the place calls timed by --profile into Flight Recorder events. jdk.jfr is not part of Java 8, so the
+    // one implementation lives in jfr/ and is found by name; a build without it profiles without events.
+    public interface PlaceRecorder {
+        // starts the event of one call, before its allocation window opens
+        Object begin();
+
+        void end(Object call, String place, String operation, long allocated);
+    }
+}
+
+// Command line options, shared by single runs and every job of a batch.
+class SimOptions implements Cloneable {
+    private static final String OPTION_HEADLESS = "--headless";
+    private static final String OPTION_BATCH = "--batch";
+    private static final String OPTION_REGISTERS = "--registers";
+    private static final String OPTION_COMPACT_INM = "--compact-inm";
+    private static final String OPTION_BINARY_TRACE = "--binary-trace";
+    private static final String OPTION_DECODE = "--decode";
+    private static final String OPTION_STEP = "--step";
+    private static final String OPTION_COMPILED_NET = "--compiled-net";
+    private static final String OPTION_THREADS = "--threads";
+    private static final String OPTION_WRITEBACK_PORTS = "--writeback-ports";
+    private static final String OPTION_CACHE = "--cache";
+    private static final String OPTION_CACHE_SIZE = "--cache-size";
+    private static final String OPTION_SERVE = "--serve";
+    private static final String OPTION_SWEEP = "--sweep";
+    private static final String OPTION_TRACE_STEPS = "--trace-steps";
+    private static final String OPTION_TRACE_PLACES = "--trace-places";
+    private static final String OPTION_TRACE_EVERY = "--trace-every";
+    private static final String OPTION_CHECKPOINT = "--checkpoint";
+    private static final String OPTION_CHECKPOINT_AT = "--checkpoint-at";
+    private static final String OPTION_CHECKPOINT_EVERY = "--checkpoint-every";
+    private static final String OPTION_RESTORE = "--restore";
+    private static final String OPTION_INCREMENTAL = "--incremental";
+    private static final String OPTION_PIPELINED = "--pipelined";
+    private static final String OPTION_PROFILE = "--profile";
+    private static final String OPTION_STATS = "--stats";
+
+    boolean headless = false;
+    String batch = null;
+    int numRegs = Simulation.DEFAULT_NUM_REGS;
+    boolean compactInstructionTrace = false;
+    boolean binaryTrace = false;
+    String decode = null;
+    int decodeStep = -1;
+    boolean compiledNet = false;
+    boolean pipelined = false;
+    int threads = 1;
+    int writebackPorts = 1;
+    String cacheDir = null;
+    long cacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+    boolean serve = false;
+    String sweep = null;
+    // the text trace covers steps traceFrom..traceTo, every traceEvery-th of them, and only tracePlaces if set
+    int traceFrom = 0;
+    int traceTo = Integer.MAX_VALUE;
+    int traceEvery = 1;
+    String tracePlaces = null;
+    // a checkpoint is written to checkpoint before step checkpointAt and every checkpointEvery steps
+    String checkpoint = null;
+    int checkpointAt = -1;
+    int checkpointEvery = 0;
+    String restore = null;
+    String incremental = null;
+    // the timing summary goes to profile; every job of the process adds to the one profiler
+    String profile = null;
+    PlaceProfiler profiler = null;
+    // pipeline counters go to stats, taken relative to each job's output file
+    String stats = null;
+
+    static SimOptions parse(String[] args) {
+        SimOptions opts = new SimOptions();
+        for (int i = 0; i != args.length; ++i) {
+            if (args[i].equals(OPTION_HEADLESS)) {
+                opts.headless = true;
+            } else if (args[i].equals(OPTION_BATCH) && i + 1 < args.length) {
+                opts.batch = args[++i];
+            } else if (args[i].equals(OPTION_REGISTERS) && i + 1 < args.length) {
+                opts.numRegs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_COMPACT_INM)) {
+                opts.compactInstructionTrace = true;
+            } else if (args[i].equals(OPTION_BINARY_TRACE)) {
+                opts.binaryTrace = true;
+            } else if (args[i].equals(OPTION_DECODE) && i + 1 < args.length) {
+                opts.decode = args[++i];
+            } else if (args[i].equals(OPTION_STEP) && i + 1 < args.length) {
+                opts.decodeStep = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_COMPILED_NET)) {
+                opts.compiledNet = true;
+            } else if (args[i].equals(OPTION_PIPELINED)) {
+                opts.pipelined = true;
+            } else if (args[i].equals(OPTION_THREADS) && i + 1 < args.length) {
+                opts.threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_WRITEBACK_PORTS) && i + 1 < args.length) {
+                opts.writebackPorts = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_CACHE) && i + 1 < args.length) {
+                opts.cacheDir = args[++i];
+            } else if (args[i].equals(OPTION_CACHE_SIZE) && i + 1 < args.length) {
+                opts.cacheBytes = Long.parseLong(args[++i]) << 20;
+            } else if (args[i].equals(OPTION_SERVE)) {
+                opts.serve = true;
+            } else if (args[i].equals(OPTION_SWEEP) && i + 1 < args.length) {
+                opts.sweep = args[++i];
+            } else if (args[i].equals(OPTION_TRACE_STEPS) && i + 1 < args.length) {
+                // <from>, <from>:<to> or :<to>, inclusive
+                String range = args[++i];
+                int colon = range.indexOf(':');
+                if (colon < 0) {
+                    opts.traceFrom = Integer.parseInt(range);
+                } else {
+                    opts.traceFrom = colon == 0 ? 0 : Integer.parseInt(range.substring(0, colon));
+                    opts.traceTo = Integer.parseInt(range.substring(colon + 1));
+                }
+            } else if (args[i].equals(OPTION_TRACE_PLACES) && i + 1 < args.length) {
+                opts.tracePlaces = args[++i];
+            } else if (args[i].equals(OPTION_CHECKPOINT) && i + 1 < args.length) {
+                opts.checkpoint = args[++i];
+            } else if (args[i].equals(OPTION_CHECKPOINT_AT) && i + 1 < args.length) {
+                opts.checkpointAt = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_CHECKPOINT_EVERY) && i + 1 < args.length) {
+                opts.checkpointEvery = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(OPTION_RESTORE) && i + 1 < args.length) {
+                opts.restore = args[++i];
+            } else if (args[i].equals(OPTION_INCREMENTAL) && i + 1 < args.length) {
+                opts.incremental = args[++i];
+            } else if (args[i].equals(OPTION_PROFILE) && i + 1 < args.length) {
+                opts.profile = args[++i];
+            } else if (args[i].equals(OPTION_STATS) && i + 1 < args.length) {
+                opts.stats = args[++i];
+            } else if (args[i].equals(OPTION_TRACE_EVERY) && i + 1 < args.length) {
+                opts.traceEvery = Integer.parseInt(args[++i]);
+                if (opts.traceEvery <= 0) {
+                    throw new IllegalArgumentException(OPTION_TRACE_EVERY + " must be positive");
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        // the binary trace records every place of every step, and a headless run has no trace to filter
+        if (opts.filtersTrace() && (opts.headless || opts.binaryTrace)) {
+            throw new IllegalArgumentException(OPTION_TRACE_STEPS + ", " + OPTION_TRACE_EVERY + " and " + OPTION_TRACE_PLACES
+                    + " only apply to the text trace, not " + (opts.headless ? OPTION_HEADLESS : OPTION_BINARY_TRACE));
+        }
+        // a checkpoint file holds one run's state, so concurrent jobs would overwrite it or all resume the same run
+        if ((opts.checkpoint != null || opts.restore != null) && (opts.batch != null || opts.serve)) {
+            throw new IllegalArgumentException(OPTION_CHECKPOINT + " and " + OPTION_RESTORE + " cannot be used with "
+                    + OPTION_BATCH + " or " + OPTION_SERVE);
+        }
+        // one incremental directory holds the state of one program's runs, which concurrent jobs would clobber
+        if (opts.incremental != null && (opts.batch != null || opts.serve)) {
+            throw new IllegalArgumentException(OPTION_INCREMENTAL + " cannot be used with " + OPTION_BATCH + " or " + OPTION_SERVE);
+        }
+        return opts;
+    }
+
+    boolean filtersTrace() {
+        return tracePlaces != null || traceFrom != 0 || traceTo != Integer.MAX_VALUE || traceEvery != 1;
+    }
+
+    SimOptions copy() {
+        try {
+            return (SimOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// One wired-up instance of the Petri net. Every component is owned by the instance, so any number of
+// simulations can run side by side in the same JVM.
+class Simulation implements AutoCloseable {
+
+    static final int DEFAULT_NUM_REGS = 8;
     private static final boolean PRINT_DEBUG = false;
     private static final boolean PRINT_FINAL = false;
+    // names of the outputs, in print order, for both engines
+    static final String[] OUTPUT_NAMES = { "INM", "INB", "AIB", "LIB", "ADB", "REB", "RGF", "DAM" };
+
+    private static final int SNAPSHOT_MAGIC = 0x4d495053; // "MIPS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final RegisterFile rgf;
+    private final DataMemory dam;
+    private final Steppable[] steps;
+    private final OutputLiner[] outputs;
+    private final CycleEngine engine;
+
+    // the components, kept for checkpoints; null on the compiled net
+    private final InstructionMemory inm;
+    private final InstructionBuffer inb;
+    private final LoadInstructionBuffer lib;
+    private final AddressBuffer adb;
+    private final ArithmeticInstructionBuffer aib;
+    private final ResultBuffer reb;
+    private final EventScheduler scheduler;
+    // set instead of an engine in the pipelined mode
+    private final PlacePipeline pipeline;
+    // counters of the modeled machine, null unless asked for
+    private final PipelineStats stats;
+
+    // the step the run starts from, past 0 after a restore
+    private int startStep = 0;
+    private final String checkpointFile;
+    private final int checkpointAt;
+    private final int checkpointEvery;
+    private boolean checkpointAtTaken = false;
+
+    // text trace selection
+    private final boolean[] tracedOutputs;
+    private final int traceFrom;
+    private final int traceTo;
+    private final int traceEvery;
+
+    public Simulation(String instructionsFile, String registersFile, String dataMemoryFile) throws IOException {
+        this(instructionsFile, registersFile, dataMemoryFile, new SimOptions());
+    }
+
+    public Simulation(String instructionsFile, String registersFile, String dataMemoryFile, SimOptions opts) throws IOException {
+        this(new RegisterFile(registersFile, opts.numRegs, opts.writebackPorts), new DataMemory(dataMemoryFile),
+                InstructionMemory.read(instructionsFile, opts.numRegs), opts);
+    }
+
+    private Simulation(RegisterFile rgf, DataMemory dam, long[] instructions, SimOptions opts) {
+        this.rgf = rgf;
+        this.dam = dam;
+        tracedOutputs = selectOutputs(opts.tracePlaces);
+        traceFrom = opts.traceFrom;
+        traceTo = opts.traceTo;
+        traceEvery = opts.traceEvery;
+        checkpointFile = opts.checkpoint;
+        checkpointAt = opts.checkpointAt;
+        checkpointEvery = opts.checkpointEvery;
+        if (opts.pipelined) {
+            if (opts.compiledNet || checkpointFile != null || opts.stats != null || !opts.headless) {
+                throw new IllegalArgumentException("The pipelined mode only runs headless on the component places");
+            }
+            if (opts.profiler != null) {
+                // its places are loops on their own threads, with no fillBuffer or step calls to time
+                throw new IllegalArgumentException("Profiling times the places of the cycle engines, not the pipelined mode");
+            }
+            stats = null;
+            pipeline = new PlacePipeline(instructions, rgf, dam, opts.writebackPorts);
+            steps = new Steppable[0];
+            outputs = new OutputLiner[0];
+            engine = null;
+            inm = null;
+            inb = null;
+            lib = null;
+            adb = null;
+            aib = null;
+            reb = null;
+            scheduler = null;
+            return;
+        }
+        pipeline = null;
+        if (opts.compiledNet) {
+            if (checkpointFile != null || opts.stats != null) {
+                throw new IllegalArgumentException("Checkpoints and pipeline stats need the component engine");
+            }
+            stats = null;
+            CompiledNet net = MipsNet.build(instructions, rgf, dam, opts.writebackPorts);
+            steps = new Steppable[0];
+            outputs = net.getOutputLiners(rgf, dam);
+            outputs[0] = opts.compactInstructionTrace ? MipsNet.compactInstructionLiner(net, instructions.length)
+                    : MipsNet.instructionLiner(net, instructions);
+            if (opts.profiler != null) {
+                opts.profiler.wrap(steps, outputs);
+            }
+            engine = net;
+            inm = null;
+            inb = null;
+            lib = null;
+            adb = null;
+            aib = null;
+            reb = null;
+            scheduler = null;
+            return;
+        }
 
-    public static void main(String[] args) throws IOException {
         // Create Components One by one, feeding each dependencies needed.
-        RegisterFile rgf = new RegisterFile(FILENAME_INPUT_REGISTER);
-        InstructionMemory inm = new InstructionMemory(rgf, FILENAME_INPUT_INSTRUCTIONS);
-        InstructionBuffer inb = new InstructionBuffer(inm, rgf);
-        LoadInstructionBuffer lib = new LoadInstructionBuffer(inb.getIssue2DataRetriever());
-        DataMemory dam = new DataMemory(NUM_REGS, FILENAME_INPUT_DATA_MEMORY);
-        AddressBuffer adb = new AddressBuffer(lib, dam);
-        ArithmeticInstructionBuffer aib = new ArithmeticInstructionBuffer(inb.getIssue1DataRetriever());
-        ResultBuffer reb = new ResultBuffer(adb, aib);
+        inm = new InstructionMemory(rgf, instructions);
+        inm.setCompactOutput(opts.compactInstructionTrace);
+        inb = new InstructionBuffer(inm, rgf);
+        lib = new LoadInstructionBuffer(inb.getIssue2DataRetriever());
+        adb = new AddressBuffer(lib, dam);
+        aib = new ArithmeticInstructionBuffer(inb.getIssue1DataRetriever());
+        reb = new ResultBuffer(adb, aib);
         // wrap up the dependency loop!
         rgf.setResultBuffer(reb);
 
+        stats = opts.stats == null ? null : new PipelineStats(rgf, inm, inb, lib, adb, aib, reb);
+
         // Create an array of steppables that we will actually execute
-        Steppable[] steps = {
+        steps = new Steppable[] {
             rgf, inm, inb, lib, adb, aib, reb
         };
 
         // Create an array from the same objects in the order that we'd like them to print
-        OutputLiner[] outputs = {
+        outputs = new OutputLiner[] {
             inm, inb, aib, lib, adb, reb, rgf, dam
         };
+        if (opts.profiler != null) {
+            opts.profiler.wrap(steps, outputs);
+        }
+
+        // Token movements that can let a place fire: register writes unblock fetch, every buffer feeds the next,
+        // and the instruction buffer issues in the same cycle instruction memory fetches.
+        scheduler = new EventScheduler(steps);
+        scheduler.addConsumer(rgf, inm);
+        scheduler.addSameCycleConsumer(inm, inb);
+        scheduler.addConsumer(inb, lib);
+        scheduler.addConsumer(inb, aib);
+        scheduler.addConsumer(lib, adb);
+        scheduler.addConsumer(adb, reb);
+        scheduler.addConsumer(aib, reb);
+        scheduler.addConsumer(reb, rgf);
+        if (opts.threads > 1) {
+            // Places in different groups share no state within a phase. INB reads what INM and RGF commit in
+            // the same step pass, and ADB and REB both recycle tokens through LIB's and INB's pools while filling.
+            engine = new ParallelCycleExecutor(new Steppable[][] {
+                { placed(rgf), placed(inm), placed(inb) },
+                { placed(lib), placed(adb), placed(aib), placed(reb) }
+            }, opts.threads);
+        } else {
+            engine = scheduler;
+        }
+    }
+
+    // the entry of steps that runs place, which is a ProfiledPlace when profiling
+    private Steppable placed(Steppable place) {
+        for (Steppable s : steps) {
+            if (ProfiledPlace.unwrap(s) == place) {
+                return s;
+            }
+        }
+        throw new IllegalArgumentException("Not a place of this simulation: " + place);
+    }
+
+    // a comma separated list of output names, or null for all of them
+    private static boolean[] selectOutputs(String names) {
+        boolean[] selected = new boolean[OUTPUT_NAMES.length];
+        if (names == null) {
+            Arrays.fill(selected, true);
+            return selected;
+        }
+        for (String name : names.split(",")) {
+            int i = Arrays.asList(OUTPUT_NAMES).indexOf(name.trim().toUpperCase());
+            if (i < 0) {
+                throw new IllegalArgumentException("Unknown place: " + name + ", expected one of " + String.join(",", OUTPUT_NAMES));
+            }
+            selected[i] = true;
+        }
+        return selected;
+    }
+
+    private boolean isTracedStep(int step) {
+        return step >= traceFrom && step <= traceTo && (step - traceFrom) % traceEvery == 0;
+    }
 
-        StringBuilder output = new StringBuilder();
+    // Runs to completion, streaming the selected steps to outputFile. Steps and places outside the selection are
+    // never formatted. Returns the number of steps taken.
+    public int runTraced(String outputFile) throws IOException {
+        int count;
+        try (TraceWriter trace = new TraceWriter(outputFile)) {
+            count = traceSteps(trace, true, null);
+        }
+
+        if (PRINT_FINAL) {
+            Files.copy(Paths.get(outputFile), System.out);
+        }
+        return count;
+    }
+
+    // The traced loop from startStep on, appended to trace; first is false when earlier steps are already in it.
+    // With a store, the state before every IncrementalStore.INTERVAL-th step is recorded along with the trace
+    // position where that step's text begins. Returns the number of steps taken.
+    int traceSteps(TraceWriter trace, boolean first, IncrementalStore store) throws IOException {
+        AsciiBuffer output = new AsciiBuffer();
 
         boolean stepsLeft = false;
-        int count = 0;
+        int count = startStep;
         do {
-            // output current iteration
-            output.append("STEP " + count + ":" + "\n");
-            for (OutputLiner s : outputs) {
-                output.append(s.getOutputLine());
-                output.append("\n");
+            if (store != null && count % IncrementalStore.INTERVAL == 0) {
+                store.record(this, count, trace.position());
             }
-            // fill all buffers
-            for (Steppable s : steps) {
-                s.fillBuffer();
+            if (isTracedStep(count)) {
+                output.setLength(0);
+                // steps are separated by a blank line
+                if (!first) {
+                    output.append('\n');
+                }
+                first = false;
+                // output current iteration
+                output.append("STEP ").append(count).append(":\n");
+                for (int i = 0; i != outputs.length; ++i) {
+                    if (tracedOutputs[i]) {
+                        outputs[i].appendOutputLine(output);
+                        output.append('\n');
+                    }
+                }
+                trace.write(output);
+                if (PRINT_DEBUG) {
+                    System.out.print(output.toString());
+                }
             }
+            stepsLeft = stepOnce(count);
+            ++count;
+        } while (stepsLeft);
+        return count;
+    }
 
-            // step current iteration
-            stepsLeft = false;
-            for (Steppable s : steps) {
-                if (s.step()) {
-                    stepsLeft = true;
+    // Runs to completion, writing the binary delta trace to outputFile. Returns the number of steps recorded.
+    public int runDeltaTraced(String outputFile) throws IOException {
+        AsciiBuffer line = new AsciiBuffer();
+        String[] lines = new String[outputs.length];
+
+        boolean stepsLeft = false;
+        int count = startStep;
+        try (DeltaTraceWriter trace = new DeltaTraceWriter(outputFile)) {
+            do {
+                for (int i = 0; i != outputs.length; ++i) {
+                    line.setLength(0);
+                    outputs[i].appendOutputLine(line);
+                    lines[i] = line.toString();
                 }
-            }
-            if (stepsLeft) {
-                output.append("\n");
-            }
-            if (PRINT_DEBUG) {
-                System.out.print(output.toString());
-            }
+                trace.writeStep(count, lines);
+                stepsLeft = stepOnce(count);
+                ++count;
+            } while (stepsLeft);
+        }
+        return count;
+    }
+
+    // Runs the same fill/step loop as the traced run without formatting any place, then reports
+    // only the final register file and data memory along with the step count and throughput.
+    public int runHeadless(PrintStream out) {
+        long start = System.nanoTime();
+        int count = run();
+        long elapsed = System.nanoTime() - start;
+
+        printFinalState(out, count);
+        out.println("THROUGHPUT:" + (long) (count / (Math.max(elapsed, 1) / 1e9)) + " steps/sec");
+        return count;
+    }
+
+    // the deterministic part of the headless report: final register file, data memory and step count
+    void printFinalState(PrintStream out, int count) {
+        out.println(rgf.getOutputLine());
+        out.println(dam.getOutputLine());
+        out.println("STEPS:" + count);
+    }
+
+    // The bare fill/step loop. Returns the number of steps taken, counted the same way as runTraced.
+    public int run() {
+        if (pipeline != null) {
+            return pipeline.run();
+        }
+        boolean stepsLeft = false;
+        int count = startStep;
+        do {
+            stepsLeft = stepOnce(count);
             ++count;
         } while (stepsLeft);
+        return count;
+    }
 
-        if (PRINT_FINAL) {
-            System.out.print(output.toString());
+    // one cycle of whichever engine drives this simulation, after saving a checkpoint if one is due at this
+    // step. Returns true if any place was able to step.
+    private boolean stepOnce(int step) {
+        if (checkpointFile != null
+                && (step == checkpointAt || (checkpointEvery > 0 && step > 0 && step % checkpointEvery == 0))) {
+            try {
+                checkpoint(step, checkpointFile, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            checkpointAtTaken |= step == checkpointAt;
+        }
+        if (stats == null) {
+            return engine.stepOnce();
+        }
+        stats.beforeStep(step);
+        boolean stepped = engine.stepOnce();
+        stats.afterStep(step);
+        return stepped;
+    }
+
+    // fails a run of count steps that never reached the step a checkpoint was asked for
+    void checkCheckpointTaken(int count) {
+        if (checkpointFile != null && checkpointAt >= 0 && !checkpointAtTaken) {
+            throw new IllegalArgumentException("No checkpoint written: --checkpoint-at " + checkpointAt
+                    + " is outside the run, which covered steps " + startStep + " to " + (count - 1));
+        }
+    }
+
+    void writeStats(Path file) throws IOException {
+        if (stats == null) {
+            throw new IllegalStateException("Pipeline stats were not collected");
         }
+        stats.write(file);
+    }
 
+    // Writes the state every place holds before step is taken, so that restore resumes by printing that step.
+    // With the program, the snapshot is complete and needs no input files to restore; without it, restore must be
+    // handed the program.
+    public void checkpoint(int step, String file, boolean withProgram) throws IOException {
+        if (inm == null) {
+            throw new IllegalStateException("Checkpoints need the component engine");
+        }
+        Path target = Paths.get(file).toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeByte(SNAPSHOT_VERSION);
+                out.writeInt(step);
+                out.writeInt(rgf.size());
+                rgf.save(out);
+                dam.save(out);
+                inm.save(out, withProgram);
+                inb.save(out);
+                lib.save(out);
+                adb.save(out);
+                aib.save(out);
+                reb.save(out);
+                out.writeLong(scheduler.getArmed());
+            }
+            // a reader never sees a half written snapshot, even if the run is killed mid-write
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
 
-        try(PrintStream ps = new PrintStream(FILENAME_OUTPUT_SIMULATION)) { ps.print(output.toString()); }
+    // A simulation that continues from a checkpoint. Options that change the wiring or output still come from opts,
+    // but the register count is the snapshot's.
+    public static Simulation restore(String file, SimOptions opts) throws IOException {
+        return restore(file, opts, null);
+    }
 
+    // program replaces the one in the snapshot, and must be given if the snapshot was saved without one
+    static Simulation restore(String file, SimOptions opts, long[] program) throws IOException {
+        if (opts.compiledNet || opts.pipelined) {
+            throw new IllegalArgumentException("Checkpoints need the component engine");
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file))))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readUnsignedByte() != SNAPSHOT_VERSION) {
+                throw new IllegalArgumentException(file + " is not a simulation checkpoint");
+            }
+            int step = in.readInt();
+            int numRegs = in.readInt();
+            Simulation sim = new Simulation(new RegisterFile(numRegs, opts.writebackPorts), new DataMemory(), new long[0], opts);
+            sim.rgf.restore(in);
+            sim.dam.restore(in);
+            sim.inm.restore(in, program);
+            sim.inb.restore(in);
+            sim.lib.restore(in, sim.inb.getPool());
+            sim.adb.restore(in, sim.lib.getPool());
+            sim.aib.restore(in, sim.inb.getPool());
+            sim.reb.restore(in, sim.adb.getPool(), sim.aib.getPool());
+            sim.scheduler.setArmed(in.readLong());
+            sim.startStep = step;
+            return sim;
+        }
     }
-}
 
-/* Primary Interfaces */
-interface OutputLiner {
-    String getOutputLine();
+    // index of the last instruction fetched, -1 before the first fetch
+    int fetchPosition() {
+        return inm.fetchPosition();
+    }
+
+    // stops any worker threads the engine started
+    @Override
+    public void close() {
+        if (engine instanceof ParallelCycleExecutor) {
+            ((ParallelCycleExecutor) engine).close();
+        }
+        for (OutputLiner o : outputs) {
+            if (o instanceof ProfiledPlace) {
+                ((ProfiledPlace) o).flush();
+            }
+        }
+    }
+
+    Steppable[] getSteppables() {
+        return steps;
+    }
+
+    OutputLiner[] getOutputLiners() {
+        return outputs;
+    }
 }
-interface Steppable extends OutputLiner {
-    void fillBuffer();
-    boolean step(); // Returns true if was able to step
+
+// Visits only the places that can possibly fire in a cycle. A place is armed for the next cycle when it
+// stepped itself or when one of its producers stepped, since otherwise nothing it reads from has changed
+// and its fillBuffer/step would do nothing. A same cycle consumer is visited whenever its producer is,
+// for places that read what their producer committed earlier in the same step pass.
+//
+// No stretch of idle cycles can occur in this net: a cycle in which nothing fires ends the run, so the
+// scheduler never has to jump the step counter forward.
+class EventScheduler implements CycleEngine {
+    private static final int MAX_PLACES = Long.SIZE;
+
+    private final Steppable[] steps;
+    private final long[] consumers;
+    private final long[] sameCycleConsumers;
+    private long armed;
+
+    public EventScheduler(Steppable[] steps) {
+        if (steps.length > MAX_PLACES) {
+            throw new IllegalArgumentException("At most " + MAX_PLACES + " places can be scheduled");
+        }
+        this.steps = steps;
+        consumers = new long[steps.length];
+        sameCycleConsumers = new long[steps.length];
+        // everything gets a look on the first cycle
+        armed = steps.length == MAX_PLACES ? -1L : (1L << steps.length) - 1;
+    }
+
+    public void addConsumer(Steppable producer, Steppable consumer) {
+        consumers[indexOf(producer)] |= 1L << indexOf(consumer);
+    }
+
+    // the consumer must come after the producer in step order
+    public void addSameCycleConsumer(Steppable producer, Steppable consumer) {
+        if (indexOf(consumer) <= indexOf(producer)) {
+            throw new IllegalArgumentException("Same cycle consumer must step after its producer");
+        }
+        sameCycleConsumers[indexOf(producer)] |= 1L << indexOf(consumer);
+    }
+
+    // s may also be the place a ProfiledPlace in steps wraps
+    private int indexOf(Steppable s) {
+        for (int i = 0; i != steps.length; ++i) {
+            if (steps[i] == s || ProfiledPlace.unwrap(steps[i]) == s) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a scheduled place: " + s);
+    }
+
+    // the places to visit next cycle, saved with a checkpoint
+    long getArmed() {
+        return armed;
+    }
+
+    void setArmed(long armed) {
+        this.armed = armed;
+    }
+
+    @Override
+    public boolean stepOnce() {
+        long visit = armed;
+        for (int i = 0; i != steps.length; ++i) {
+            if ((visit & (1L << i)) != 0) {
+                visit |= sameCycleConsumers[i];
+            }
+        }
+        for (long m = visit; m != 0; m &= m - 1) {
+            steps[Long.numberOfTrailingZeros(m)].fillBuffer();
+        }
+        long next = 0;
+        for (long m = visit; m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            if (steps[i].step()) {
+                next |= (1L << i) | consumers[i];
+            }
+        }
+        armed = next;
+        return next != 0;
+    }
 }
-interface DataRetriever<O> {
-    O getData();
+
+// Runs each cycle's fill phase and step phase across several threads, with a barrier between the phases.
+// Places come in groups that are spread over the threads round robin; a group always runs on one thread in
+// its given order, so places that touch each other's state inside a phase must share a group. Every thread
+// keeps its own "stepped" flag, and the flags are only combined once all threads have finished stepping, so
+// the result is identical to running the groups one after another.
+class ParallelCycleExecutor implements CycleEngine, AutoCloseable {
+    private final Steppable[][] partitions;
+    private final boolean[] stepped;
+    private final CyclicBarrier start;
+    private final CyclicBarrier filled;
+    private final CyclicBarrier done;
+    private final Thread[] workers;
+    private volatile boolean shutdown = false;
+    private volatile Throwable failure = null;
+
+    public ParallelCycleExecutor(Steppable[][] groups, int threads) {
+        int numPartitions = Math.max(1, Math.min(threads, groups.length));
+        List<List<Steppable>> assigned = new ArrayList<>();
+        for (int i = 0; i != numPartitions; ++i) {
+            assigned.add(new ArrayList<>());
+        }
+        for (int g = 0; g != groups.length; ++g) {
+            assigned.get(g % numPartitions).addAll(Arrays.asList(groups[g]));
+        }
+        partitions = new Steppable[numPartitions][];
+        for (int i = 0; i != numPartitions; ++i) {
+            partitions[i] = assigned.get(i).toArray(new Steppable[0]);
+        }
+        stepped = new boolean[numPartitions];
+        start = new CyclicBarrier(numPartitions);
+        filled = new CyclicBarrier(numPartitions);
+        done = new CyclicBarrier(numPartitions);
+
+        // the calling thread runs partition 0 itself
+        workers = new Thread[numPartitions - 1];
+        for (int i = 1; i != numPartitions; ++i) {
+            final int partition = i;
+            workers[i - 1] = new Thread(() -> workerLoop(partition), "cycle-worker-" + i);
+            workers[i - 1].setDaemon(true);
+            workers[i - 1].start();
+        }
+    }
+
+    private void workerLoop(int partition) {
+        try {
+            while (true) {
+                start.await();
+                if (shutdown) {
+                    return;
+                }
+                runPartition(partition);
+            }
+        } catch (InterruptedException | BrokenBarrierException e) {
+            // closed while waiting, or another partition failed
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // Records the first failure and breaks every barrier, so no partition waits for one that is gone. A zero
+    // timeout await breaks a barrier for the parties waiting on it and for any that arrive later, where reset
+    // would leave a fresh barrier for a late arrival to block on. The executor cannot be used afterwards.
+    private void fail(Throwable t) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+        for (CyclicBarrier b : new CyclicBarrier[] { start, filled, done }) {
+            try {
+                b.await(0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (BrokenBarrierException | TimeoutException e) {
+                // broken now
+            }
+        }
+    }
+
+    private void runPartition(int partition) throws InterruptedException, BrokenBarrierException {
+        Steppable[] places = partitions[partition];
+        for (Steppable s : places) {
+            s.fillBuffer();
+        }
+        filled.await();
+        boolean any = false;
+        for (Steppable s : places) {
+            if (s.step()) {
+                any = true;
+            }
+        }
+        stepped[partition] = any;
+        done.await();
+    }
+
+    @Override
+    public boolean stepOnce() {
+        if (failure != null) {
+            throw new IllegalStateException("A cycle worker failed", failure);
+        }
+        try {
+            start.await();
+            runPartition(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during a cycle", e);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("A cycle worker failed", failure != null ? failure : e);
+        } catch (RuntimeException | Error e) {
+            // partition 0 failed on this thread; the workers must not be left waiting for it
+            fail(e);
+            throw e;
+        }
+        // a worker that failed as the last to arrive lets the barriers trip instead of breaking them
+        if (failure != null) {
+            throw new IllegalStateException("A cycle worker failed", failure);
+        }
+        boolean any = false;
+        for (boolean b : stepped) {
+            any |= b;
+        }
+        return any;
+    }
+
+    @Override
+    public void close() {
+        shutdown = true;
+        if (workers.length == 0) {
+            return;
+        }
+        try {
+            start.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (BrokenBarrierException | TimeoutException e) {
+            for (Thread w : workers) {
+                w.interrupt();
+            }
+        }
+    }
 }
 
-/* Pure Helper Types */
-enum Register {
-    R0(0), R1(1), R2(2), R3(3), R4(4), R5(5), R6(6), R7(7);
-    private int index;
-    Register(int index) {
-        this.index = index;
+/* Pipeline Stats */
+
+// Counters of the modeled machine, read off the places around every step: fetch stalls and the register each
+// waits for, how many tokens each buffer holds, REB depth per window of steps, results retired, and the
+// LD/ALU issue split. Written as one JSON object.
+class PipelineStats {
+    static final int WINDOW = 256;
+    private static final String[] BUFFERS = { "INB", "LIB", "ADB", "AIB", "REB" };
+
+    private final RegisterFile rgf;
+    private final InstructionMemory inm;
+    private final InstructionBuffer inb;
+    private final BasicRegister<?, ?> lib;
+    private final BasicRegister<?, ?> adb;
+    private final BasicRegister<?, ?> aib;
+    private final ResultBuffer reb;
+
+    private int firstStep = -1;
+    private int steps = 0;
+    private final long retiredAtStart;
+    private long loadIssues = 0;
+    private long arithmeticIssues = 0;
+
+    // stall cycles per register, and each run of stalled steps as { first step, steps, register }
+    private final long[] stallsByRegister;
+    private long stallSteps = 0;
+    private final List<int[]> stalls = new ArrayList<>();
+    private int[] stall = null;
+
+    // occupancy[b][n]: steps that ended with n tokens in BUFFERS[b]
+    private final long[][] occupancy = new long[BUFFERS.length][2];
+
+    // per WINDOW steps: { first step, depth sum, max depth, retired }
+    private final List<long[]> windows = new ArrayList<>();
+    private long retiredBefore;
+
+    PipelineStats(RegisterFile rgf, InstructionMemory inm, InstructionBuffer inb, BasicRegister<?, ?> lib,
+            BasicRegister<?, ?> adb, BasicRegister<?, ?> aib, ResultBuffer reb) {
+        this.rgf = rgf;
+        this.inm = inm;
+        this.inb = inb;
+        this.lib = lib;
+        this.adb = adb;
+        this.aib = aib;
+        this.reb = reb;
+        stallsByRegister = new long[rgf.size()];
+        retiredAtStart = rgf.retired();
+    }
+
+    // Fetch in this step sees the registers as the previous step left them, so a stall is read off before the
+    // step: the next instruction exists but a source is not valid yet. The first invalid source is blamed.
+    void beforeStep(int step) {
+        if (firstStep < 0) {
+            firstStep = step;
+        }
+        retiredBefore = rgf.retired();
+        int next = inm.fetchPosition() + 1;
+        int blamed = -1;
+        if (next < inm.length()) {
+            long in = inm.instructionAt(next);
+            if (!rgf.isValid(PackedInstruction.source1(in))) {
+                blamed = PackedInstruction.source1(in);
+            } else if (!rgf.isValid(PackedInstruction.source2(in))) {
+                blamed = PackedInstruction.source2(in);
+            }
+        }
+        if (blamed < 0) {
+            stall = null;
+            return;
+        }
+        ++stallSteps;
+        ++stallsByRegister[blamed];
+        if (stall == null || stall[2] != blamed) {
+            stall = new int[] { step, 0, blamed };
+            stalls.add(stall);
+        }
+        ++stall[1];
     }
-    static Register fromString(String rStr) {
-        for (Register r : values()) {
-            if (r.toString().equals(rStr)) {
-                return r;
+
+    void afterStep(int step) {
+        ++steps;
+        if (inb.hasLoadIssue()) {
+            ++loadIssues;
+        }
+        if (inb.hasArithmeticIssue()) {
+            ++arithmeticIssues;
+        }
+        count(0, inb.hasLoadIssue() || inb.hasArithmeticIssue() ? 1 : 0);
+        count(1, lib.isOccupied() ? 1 : 0);
+        count(2, adb.isOccupied() ? 1 : 0);
+        count(3, aib.isOccupied() ? 1 : 0);
+        int depth = reb.size();
+        count(4, depth);
+
+        if ((step - firstStep) % WINDOW == 0) {
+            windows.add(new long[] { step, 0, 0, 0 });
+        }
+        long[] w = windows.get(windows.size() - 1);
+        w[1] += depth;
+        w[2] = Math.max(w[2], depth);
+        w[3] += rgf.retired() - retiredBefore;
+    }
+
+    private void count(int buffer, int tokens) {
+        if (tokens >= occupancy[buffer].length) {
+            occupancy[buffer] = Arrays.copyOf(occupancy[buffer], Math.max(tokens + 1, occupancy[buffer].length * 2));
+        }
+        ++occupancy[buffer][tokens];
+    }
+
+    void write(Path file) throws IOException {
+        long retired = rgf.retired() - retiredAtStart;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"firstStep\": ").append(Math.max(firstStep, 0)).append(",\n");
+        sb.append("  \"steps\": ").append(steps).append(",\n");
+        sb.append("  \"retired\": ").append(retired).append(",\n");
+        sb.append("  \"ipc\": ").append(steps == 0 ? 0.0 : (double) retired / steps).append(",\n");
+        sb.append("  \"issued\": { \"LD\": ").append(loadIssues).append(", \"ALU\": ").append(arithmeticIssues)
+                .append(" },\n");
+        sb.append("  \"fetchStallSteps\": ").append(stallSteps).append(",\n");
+        sb.append("  \"fetchStallsByRegister\": {");
+        String sep = " ";
+        for (int r = 0; r != stallsByRegister.length; ++r) {
+            if (stallsByRegister[r] != 0) {
+                sb.append(sep).append("\"R").append(r).append("\": ").append(stallsByRegister[r]);
+                sep = ", ";
+            }
+        }
+        sb.append(" },\n");
+        sb.append("  \"fetchStalls\": [");
+        sep = "";
+        for (int[] st : stalls) {
+            sb.append(sep).append("\n    { \"step\": ").append(st[0]).append(", \"steps\": ").append(st[1])
+                    .append(", \"register\": \"R").append(st[2]).append("\" }");
+            sep = ",";
+        }
+        sb.append(stalls.isEmpty() ? "],\n" : "\n  ],\n");
+        // occupancy[n] is the number of steps that ended with n tokens held
+        sb.append("  \"occupancy\": {");
+        for (int b = 0; b != BUFFERS.length; ++b) {
+            long[] h = occupancy[b];
+            int last = h.length - 1;
+            while (last > 0 && h[last] == 0) {
+                --last;
+            }
+            sb.append(b == 0 ? "\n" : ",\n").append("    \"").append(BUFFERS[b]).append("\": [");
+            for (int n = 0; n <= last; ++n) {
+                sb.append(n == 0 ? "" : ", ").append(h[n]);
+            }
+            sb.append(']');
+        }
+        sb.append("\n  },\n");
+        sb.append("  \"rebDepthWindow\": ").append(WINDOW).append(",\n");
+        sb.append("  \"rebDepth\": [");
+        sep = "";
+        for (long[] w : windows) {
+            long length = Math.min(WINDOW, firstStep + steps - w[0]);
+            sb.append(sep).append("\n    { \"step\": ").append(w[0])
+                    .append(", \"mean\": ").append((double) w[1] / length)
+                    .append(", \"max\": ").append(w[2])
+                    .append(", \"retired\": ").append(w[3]).append(" }");
+            sep = ",";
+        }
+        sb.append(windows.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+}
+
+/* Profiling */
+
+// Totals of calls, time and allocation per named operation, summed over every simulation of the process and
+// written as CSV at the end. Places are only wrapped in a ProfiledPlace when profiling is on, so without
+// --profile nothing on the stepping or tracing path changes. When jfr/ is built in, each timed call is also a
+// Flight Recorder event.
+class PlaceProfiler {
+    // allocation is counted where the JVM can report it per thread
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    // name to { calls, nanos, allocated bytes or -1 }
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+
+    // null when jfr/ was not compiled in or the JVM has no Flight Recorder
+    final MIPSsim.PlaceRecorder recorder = loadRecorder();
+
+    private static MIPSsim.PlaceRecorder loadRecorder() {
+        try {
+            return (MIPSsim.PlaceRecorder) Class.forName("PlaceEventRecorder").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+            if (b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled()) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    // bytes allocated by the calling thread so far, or -1 if the JVM cannot tell
+    static long allocatedBytes() {
+        return ALLOCATION == null ? -1 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Replaces every place in steps and outputs with a ProfiledPlace, named from Simulation.OUTPUT_NAMES by its
+    // position in outputs. A place in both arrays gets the same wrapper in each.
+    void wrap(Steppable[] steps, OutputLiner[] outputs) {
+        for (int i = 0; i != outputs.length; ++i) {
+            ProfiledPlace p = new ProfiledPlace(this, Simulation.OUTPUT_NAMES[i], outputs[i]);
+            outputs[i] = p;
+            for (int j = 0; j != steps.length; ++j) {
+                if (steps[j] == p.place) {
+                    steps[j] = p;
+                }
+            }
+        }
+    }
+
+    synchronized void add(String name, long calls, long nanos, long bytes) {
+        long[] t = totals.get(name);
+        if (t == null) {
+            totals.put(name, new long[] { calls, nanos, bytes });
+            return;
+        }
+        t[0] += calls;
+        t[1] += nanos;
+        t[2] = t[2] < 0 || bytes < 0 ? -1 : t[2] + bytes;
+    }
+
+    synchronized void write(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder("name,calls,nanos,allocated_bytes\n");
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            long[] t = e.getValue();
+            sb.append(e.getKey()).append(',').append(t[0]).append(',').append(t[1]).append(',').append(t[2]).append('\n');
+        }
+        Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+}
+
+// Times every fillBuffer, step and appendOutputLine of one place. Counters are plain fields: a place is only
+// ever run by one thread at a time, and the engines order those runs. flush hands the totals to the profiler.
+// The event of a call is begun outside the allocation window, so it is never counted against the place.
+class ProfiledPlace implements Steppable {
+    final OutputLiner place;
+    private final PlaceProfiler profiler;
+    private final MIPSsim.PlaceRecorder recorder;
+    private final String name;
+    private long fillCalls, fillNanos, fillBytes;
+    private long stepCalls, stepNanos, stepBytes;
+    private long outputCalls, outputNanos, outputBytes;
+
+    ProfiledPlace(PlaceProfiler profiler, String name, OutputLiner place) {
+        this.profiler = profiler;
+        this.recorder = profiler.recorder;
+        this.name = name;
+        this.place = place;
+    }
+
+    // the place behind s, or s itself if it is not wrapped
+    static OutputLiner unwrap(OutputLiner s) {
+        return s instanceof ProfiledPlace ? ((ProfiledPlace) s).place : s;
+    }
+
+    @Override
+    public void fillBuffer() {
+        Object event = recorder == null ? null : recorder.begin();
+        long bytes = PlaceProfiler.allocatedBytes();
+        long start = System.nanoTime();
+        ((Steppable) place).fillBuffer();
+        fillNanos += System.nanoTime() - start;
+        bytes = PlaceProfiler.allocatedBytes() - bytes;
+        fillBytes += bytes;
+        ++fillCalls;
+        if (event != null) {
+            recorder.end(event, name, "fillBuffer", bytes);
+        }
+    }
+
+    @Override
+    public boolean step() {
+        Object event = recorder == null ? null : recorder.begin();
+        long bytes = PlaceProfiler.allocatedBytes();
+        long start = System.nanoTime();
+        boolean stepped = ((Steppable) place).step();
+        stepNanos += System.nanoTime() - start;
+        bytes = PlaceProfiler.allocatedBytes() - bytes;
+        stepBytes += bytes;
+        ++stepCalls;
+        if (event != null) {
+            recorder.end(event, name, "step", bytes);
+        }
+        return stepped;
+    }
+
+    @Override
+    public void appendOutputLine(AsciiBuffer out) {
+        Object event = recorder == null ? null : recorder.begin();
+        long bytes = PlaceProfiler.allocatedBytes();
+        long start = System.nanoTime();
+        place.appendOutputLine(out);
+        outputNanos += System.nanoTime() - start;
+        bytes = PlaceProfiler.allocatedBytes() - bytes;
+        outputBytes += bytes;
+        ++outputCalls;
+        if (event != null) {
+            recorder.end(event, name, "getOutputLine", bytes);
+        }
+    }
+
+    void flush() {
+        boolean measured = PlaceProfiler.allocatedBytes() >= 0;
+        if (fillCalls != 0) {
+            profiler.add(name + ".fillBuffer", fillCalls, fillNanos, measured ? fillBytes : -1);
+        }
+        if (stepCalls != 0) {
+            profiler.add(name + ".step", stepCalls, stepNanos, measured ? stepBytes : -1);
+        }
+        if (outputCalls != 0) {
+            profiler.add(name + ".getOutputLine", outputCalls, outputNanos, measured ? outputBytes : -1);
+        }
+        fillCalls = fillNanos = fillBytes = 0;
+        stepCalls = stepNanos = stepBytes = 0;
+        outputCalls = outputNanos = outputBytes = 0;
+    }
+}
+
+/* Pipelined Places */
+
+// Bounded single-producer single-consumer ring. Only the producer moves tail and only the consumer moves head,
+// each published with a lazy set, and each side rereads the other's index only when it seems to have run out.
+final class SpscQueue<T> {
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // producer side
+    private long headSeen = 0;
+    // consumer side
+    private long tailSeen = 0;
+
+    public SpscQueue(int capacity) {
+        int length = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[length];
+        mask = length - 1;
+    }
+
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - headSeen == slots.length) {
+            headSeen = head.get();
+            if (t - headSeen == slots.length) {
+                return false;
+            }
+        }
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        long h = head.get();
+        if (h == tailSeen) {
+            tailSeen = tail.get();
+            if (h == tailSeen) {
+                return null;
+            }
+        }
+        return (T) slots[(int) h & mask];
+    }
+
+    // drops the item peek returned
+    public void remove() {
+        long h = head.get();
+        slots[(int) h & mask] = null;
+        head.lazySet(h + 1);
+    }
+}
+
+// A token of the pipelined mode. One object follows its instruction from fetch to writeback, picking up
+// register values, an address and a result on the way; cycle is the step in which it entered its current place.
+final class PipelineToken extends Instruction {
+    int cycle;
+    byte register1Data;
+    byte register2Data;
+    int addr;
+    byte value;
+
+    PipelineToken(long packed, int cycle) {
+        super(packed);
+        this.cycle = cycle;
+    }
+}
+
+// Runs the pipeline with every place on its own thread, connected by SpscQueues instead of getData calls, for
+// runs that only need the final state. It gives the same register file, data memory and step count as the cycle
+// engines.
+//
+// Tokens carry the step they enter each place, and every place publishes a clock: the last step for which all of
+// its output is in its queues. A place works on a step once its inputs' clocks cover it, so places run apart from
+// each other by as many steps as the latency between them allows. The only loop is the register file feeding
+// fetch: fetch needs validity after step c - 1 and INB the values after step c, which depend on results fetched
+// at least four steps earlier, so that loop is what bounds how far the threads spread out. Both keep their own
+// copy of the registers, fed by a stream of the writes.
+class PlacePipeline {
+    private static final int DONE = Integer.MAX_VALUE;
+    private static final int QUEUE_SIZE = 1024;
+
+    private final long[] program;
+    private final RegisterFile rgf;
+    private final DataMemoryRetriever dam;
+    private final int writebackPorts;
+
+    private final SpscQueue<PipelineToken> inmToInb = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> inbToLib = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> inbToAib = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> libToAdb = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> adbToReb = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> aibToReb = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> rebToRgf = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> rgfToInm = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<PipelineToken> rgfToInb = new SpscQueue<>(QUEUE_SIZE);
+
+    private volatile int inmClock = -1;
+    private volatile int inbClock = -1;
+    private volatile int libClock = -1;
+    private volatile int adbClock = -1;
+    private volatile int aibClock = -1;
+    private volatile int rebClock = -1;
+    private volatile int rgfClock = -1;
+    // the first place to fail; the others, which mostly fail because of it, are suppressed into it
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // written by the RGF thread, read after it is joined
+    private int fetched = 0;
+    private int lastWrite = -1;
+
+    public PlacePipeline(long[] program, RegisterFile rgf, DataMemoryRetriever dam, int writebackPorts) {
+        this.program = program;
+        this.rgf = rgf;
+        this.dam = dam;
+        this.writebackPorts = writebackPorts;
+    }
+
+    // Runs to the end and leaves the final values in the register file. Returns the number of steps the cycle
+    // engines would take: every step up to the last register write, plus the idle one that ends the run.
+    public int run() {
+        Thread[] workers = {
+            new Thread(this::runInm, "pipeline-INM"),
+            new Thread(this::runInb, "pipeline-INB"),
+            new Thread(() -> relay(inbToLib, libToAdb, Place.LIB), "pipeline-LIB"),
+            new Thread(() -> relay(libToAdb, adbToReb, Place.ADB), "pipeline-ADB"),
+            new Thread(() -> relay(inbToAib, aibToReb, Place.AIB), "pipeline-AIB"),
+            new Thread(this::runReb, "pipeline-REB"),
+            new Thread(this::runRgf, "pipeline-RGF")
+        };
+        for (Thread w : workers) {
+            w.setDaemon(true);
+            w.setUncaughtExceptionHandler((t, e) -> {
+                if (!failure.compareAndSet(null, e)) {
+                    failure.get().addSuppressed(e);
+                }
+            });
+            w.start();
+        }
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread w : workers) {
+                w.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during a pipelined run", e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("A pipeline place failed", failure.get());
+        }
+        return fetched == 0 ? 1 : lastWrite + 2;
+    }
+
+    // Spins briefly, then yields, then sleeps, so waiting places leave the cores to the ones with work even
+    // when there are fewer cores than places. Returns the next idle count.
+    private int pause(int idle) {
+        if (failure.get() != null) {
+            throw new IllegalStateException("Another pipeline place failed");
+        }
+        if (idle > 1000) {
+            LockSupport.parkNanos(20_000);
+        } else if (idle > 50) {
+            Thread.yield();
+        }
+        return idle + 1;
+    }
+
+    private void put(SpscQueue<PipelineToken> queue, PipelineToken token) {
+        for (int idle = 0; !queue.offer(token); ) {
+            idle = pause(idle);
+        }
+    }
+
+    // applies the writes of steps up to cycle that have arrived, returning how many there were
+    private static int applyWrites(SpscQueue<PipelineToken> writes, int cycle, BitSet valid, byte[] vals) {
+        int applied = 0;
+        PipelineToken w;
+        while ((w = writes.peek()) != null && w.cycle <= cycle) {
+            valid.set(w.getDest());
+            vals[w.getDest()] = w.value;
+            writes.remove();
+            ++applied;
+        }
+        return applied;
+    }
+
+    // waits until the register file has written every step up to cycle, applying those writes
+    private int awaitWrites(SpscQueue<PipelineToken> writes, int cycle, BitSet valid, byte[] vals) {
+        int applied = 0;
+        for (int idle = 0; rgfClock < cycle; ) {
+            applied += applyWrites(writes, cycle, valid, vals);
+            idle = pause(idle);
+        }
+        return applied + applyWrites(writes, cycle, valid, vals);
+    }
+
+    // keeps taking writes until the register file is done, so it never blocks on a full queue
+    private void drainWrites(SpscQueue<PipelineToken> writes, BitSet valid, byte[] vals) {
+        awaitWrites(writes, DONE, valid, vals);
+    }
+
+    private BitSet validCopy() {
+        BitSet valid = new BitSet(rgf.size());
+        for (int r = 0; r != rgf.size(); ++r) {
+            if (rgf.isValid(r)) {
+                valid.set(r);
+            }
+        }
+        return valid;
+    }
+
+    private byte[] valueCopy() {
+        byte[] vals = new byte[rgf.size()];
+        for (int r = 0; r != vals.length; ++r) {
+            vals[r] = rgf.read(r);
+        }
+        return vals;
+    }
+
+    // Fetch checks its sources against validity after the previous step, as InstructionMemory.fillBuffer does.
+    // Registers only ever become valid, so a source already seen valid needs no wait; an invalid one waits for
+    // the register file to finish the previous step. Once nothing fetched is left unwritten, a source that is
+    // still invalid stays that way, and fetch is over.
+    private void runInm() {
+        BitSet valid = validCopy();
+        byte[] vals = new byte[rgf.size()];
+        int written = 0;
+        int count = 0;
+        for (int c = 0, next = 0; next < program.length; ++c) {
+            long in = program[next];
+            int s1 = PackedInstruction.source1(in);
+            int s2 = PackedInstruction.source2(in);
+            written += applyWrites(rgfToInm, c - 1, valid, vals);
+            if (!valid.get(s1) || !valid.get(s2)) {
+                written += awaitWrites(rgfToInm, c - 1, valid, vals);
+                if (!valid.get(s1) || !valid.get(s2)) {
+                    if (written == count) {
+                        break;
+                    }
+                    inmClock = c;
+                    continue;
+                }
+            }
+            put(inmToInb, new PipelineToken(in, c));
+            ++count;
+            ++next;
+            inmClock = c;
+        }
+        fetched = count;
+        inmClock = DONE;
+        drainWrites(rgfToInm, valid, vals);
+    }
+
+    // INB reads the register values after the register file's writes of the fetch step, and issues the next step
+    private void runInb() {
+        BitSet valid = new BitSet();
+        byte[] vals = valueCopy();
+        for (int idle = 0; ; ) {
+            int upstream = inmClock;
+            PipelineToken t;
+            while ((t = inmToInb.peek()) != null && t.cycle <= upstream) {
+                // everything before this token is out, and the register file may need that to reach its step
+                if (inbClock < t.cycle) {
+                    inbClock = t.cycle;
+                }
+                awaitWrites(rgfToInb, t.cycle, valid, vals);
+                t.register1Data = vals[t.getSource1()];
+                t.register2Data = vals[t.getSource2()];
+                ++t.cycle;
+                put(t.getOpcode().isLoad() ? inbToLib : inbToAib, t);
+                inmToInb.remove();
+                idle = 0;
+            }
+            if (upstream == DONE) {
+                break;
+            }
+            if (inbClock != upstream + 1) {
+                inbClock = upstream + 1;
+                idle = 0;
+            }
+            applyWrites(rgfToInb, upstream, valid, vals);
+            idle = pause(idle);
+        }
+        inbClock = DONE;
+        drainWrites(rgfToInb, valid, vals);
+    }
+
+    private enum Place { LIB, ADB, AIB }
+
+    // LIB, ADB and AIB each hold a token for one step and transform it on the way out
+    private void relay(SpscQueue<PipelineToken> in, SpscQueue<PipelineToken> out, Place place) {
+        for (int idle = 0; ; ) {
+            int upstream = place == Place.LIB || place == Place.AIB ? inbClock : libClock;
+            PipelineToken t;
+            while ((t = in.peek()) != null && t.cycle <= upstream) {
+                switch (place) {
+                case LIB:
+                    t.addr = t.register1Data + t.register2Data;
+                    break;
+                case ADB:
+                    t.value = dam.getData(t.addr);
+                    break;
+                default:
+                    t.value = t.getOpcode().compute(t.register1Data, t.register2Data);
+                    break;
+                }
+                ++t.cycle;
+                put(out, t);
+                in.remove();
+                idle = 0;
+            }
+            int clock = upstream == DONE ? DONE : upstream + 1;
+            switch (place) {
+            case LIB:
+                libClock = clock;
+                break;
+            case ADB:
+                adbClock = clock;
+                break;
+            default:
+                aibClock = clock;
+                break;
+            }
+            if (clock == DONE) {
+                return;
+            }
+            idle = pause(idle);
+        }
+    }
+
+    // Results that arrived by step w - 1 are committed at w, up to one per writeback port, lowest count first.
+    // With nothing held and nothing queued, no commit can happen before the step after the inputs' clocks.
+    private void runReb() {
+        ReorderBuffer<PipelineToken> held = new ReorderBuffer<>();
+        int numHeld = 0;
+        for (int w = 0, idle = 0; ; ) {
+            int arrived = Math.min(adbClock, aibClock);
+            if (arrived < w - 1) {
+                idle = pause(idle);
+                continue;
+            }
+            PipelineToken t;
+            while ((t = adbToReb.peek()) != null && t.cycle <= w - 1) {
+                held.add(t);
+                adbToReb.remove();
+                ++numHeld;
+            }
+            while ((t = aibToReb.peek()) != null && t.cycle <= w - 1) {
+                held.add(t);
+                aibToReb.remove();
+                ++numHeld;
+            }
+            if (numHeld == 0 && adbToReb.peek() == null && aibToReb.peek() == null) {
+                if (arrived == DONE) {
+                    break;
+                }
+                if (rebClock == arrived) {
+                    idle = pause(idle);
+                } else {
+                    rebClock = arrived;
+                    idle = 0;
+                }
+                w = arrived + 1;
+                continue;
+            }
+            for (int port = 0; port != writebackPorts && numHeld != 0; ++port) {
+                t = held.poll();
+                --numHeld;
+                t.cycle = w;
+                put(rebToRgf, t);
+            }
+            rebClock = w;
+            ++w;
+            idle = 0;
+        }
+        rebClock = DONE;
+    }
+
+    private void runRgf() {
+        for (int idle = 0; ; ) {
+            int upstream = rebClock;
+            PipelineToken t;
+            while ((t = rebToRgf.peek()) != null && t.cycle <= upstream) {
+                rgf.write(t.getDest(), t.value);
+                lastWrite = t.cycle;
+                put(rgfToInm, t);
+                put(rgfToInb, t);
+                rebToRgf.remove();
+                idle = 0;
+            }
+            if (rgfClock != upstream) {
+                rgfClock = upstream;
+                idle = 0;
+            }
+            if (upstream == DONE) {
+                return;
+            }
+            idle = pause(idle);
+        }
+    }
+}
+
+/* Compiled Petri Net */
+
+// Declarative description of a Petri net: token places, and transitions that each move one token from an input
+// place to an output place (or consume it) when its guard holds, rewriting it with a transform on the way.
+// Guards and transforms may also read and write data stores such as the register file.
+//
+// Transitions fire in two phases per cycle, like fillBuffer and step: every enabled transition first takes its
+// token, in declaration order, then every taken token is transformed and deposited, again in declaration order.
+// So a token deposited in a cycle can only move on in the next one, and a transform sees the effects of
+// transforms declared before it in the same cycle.
+class NetSpec {
+    enum PlaceKind { FIFO, ORDERED }
+
+    final List<String> placeNames = new ArrayList<>();
+    final List<PlaceKind> placeKinds = new ArrayList<>();
+    final List<TokenFormatter> placeFormatters = new ArrayList<>();
+    final List<Integer> transitionInputs = new ArrayList<>();
+    final List<Integer> transitionOutputs = new ArrayList<>();
+    final List<TokenGuard> guards = new ArrayList<>();
+    final List<TokenTransform> transforms = new ArrayList<>();
+
+    // ORDERED places hand out their lowest sequence count first
+    public int place(String name, PlaceKind kind, TokenFormatter formatter) {
+        placeNames.add(name);
+        placeKinds.add(kind);
+        placeFormatters.add(formatter);
+        return placeNames.size() - 1;
+    }
+
+    // output may be -1 for a transition that consumes its token; guard and transform may be null
+    public void transition(int input, int output, TokenGuard guard, TokenTransform transform) {
+        transitionInputs.add(input);
+        transitionOutputs.add(output);
+        guards.add(guard);
+        transforms.add(transform);
+    }
+
+    public CompiledNet compile(TokenStore tokens) {
+        return new CompiledNet(this, tokens);
+    }
+}
+interface TokenGuard {
+    boolean test(TokenStore tokens, int token);
+}
+interface TokenTransform {
+    void apply(TokenStore tokens, int token);
+}
+interface TokenFormatter {
+    void append(AsciiBuffer out, TokenStore tokens, int token);
+}
+
+// Struct-of-arrays token storage. A token is an int id; its packed instruction and two data words live in
+// parallel primitive arrays, and ids are recycled through a free list.
+class TokenStore {
+    long[] word = new long[64];
+    int[] a = new int[64];
+    int[] b = new int[64];
+    private int[] free = new int[64];
+    private int numFree = 0;
+    private int next = 0;
+
+    public int acquire(long instruction) {
+        int id;
+        if (numFree != 0) {
+            id = free[--numFree];
+        } else {
+            if (next == word.length) {
+                int size = next * 2;
+                word = Arrays.copyOf(word, size);
+                a = Arrays.copyOf(a, size);
+                b = Arrays.copyOf(b, size);
+            }
+            id = next++;
+        }
+        word[id] = instruction;
+        a[id] = 0;
+        b[id] = 0;
+        return id;
+    }
+
+    public void release(int id) {
+        if (numFree == free.length) {
+            free = Arrays.copyOf(free, numFree * 2);
+        }
+        free[numFree++] = id;
+    }
+
+    public int count(int id) {
+        return PackedInstruction.count(word[id]);
+    }
+}
+
+// A NetSpec compiled down to primitive arrays: each place's tokens in an int array (a FIFO ring buffer, or for
+// ORDERED places a ring indexed by sequence count, like ReorderBuffer), a bitset of marked places, and for each
+// place the bitset of transitions it feeds, so finding the enabled transitions is a couple of mask operations.
+class CompiledNet implements CycleEngine {
+    private static final int MAX_TRANSITIONS = Long.SIZE;
+    private static final int MAX_PLACES = Long.SIZE;
+    private static final int EMPTY = -1;
+
+    private final TokenStore tokens;
+    private final String[] placeNames;
+    private final boolean[] ordered;
+    private final TokenFormatter[] formatters;
+    private final int[][] placeTokens;
+    private final int[] head;
+    private final int[] size;
+    // one past the highest count held, for ORDERED places; head is then the lowest count that may be held
+    private final int[] high;
+    private long marked = 0;
+
+    private final int[] input;
+    private final int[] output;
+    private final long[] placeConsumers;
+    private final TokenGuard[] guards;
+    private final TokenTransform[] transforms;
+    private final int[] taken;
+
+    CompiledNet(NetSpec spec, TokenStore tokens) {
+        int numPlaces = spec.placeNames.size();
+        int numTransitions = spec.transitionInputs.size();
+        if (numPlaces > MAX_PLACES || numTransitions > MAX_TRANSITIONS) {
+            throw new IllegalArgumentException("Net too large to compile");
+        }
+        this.tokens = tokens;
+        placeNames = spec.placeNames.toArray(new String[0]);
+        formatters = spec.placeFormatters.toArray(new TokenFormatter[0]);
+        ordered = new boolean[numPlaces];
+        placeTokens = new int[numPlaces][];
+        head = new int[numPlaces];
+        size = new int[numPlaces];
+        high = new int[numPlaces];
+        for (int p = 0; p != numPlaces; ++p) {
+            ordered[p] = spec.placeKinds.get(p) == NetSpec.PlaceKind.ORDERED;
+            placeTokens[p] = new int[4];
+            if (ordered[p]) {
+                Arrays.fill(placeTokens[p], EMPTY);
+            }
+        }
+
+        input = new int[numTransitions];
+        output = new int[numTransitions];
+        placeConsumers = new long[numPlaces];
+        guards = spec.guards.toArray(new TokenGuard[0]);
+        transforms = spec.transforms.toArray(new TokenTransform[0]);
+        taken = new int[numTransitions];
+        for (int t = 0; t != numTransitions; ++t) {
+            input[t] = spec.transitionInputs.get(t);
+            output[t] = spec.transitionOutputs.get(t);
+            placeConsumers[input[t]] |= 1L << t;
+        }
+    }
+
+    public void add(int place, int token) {
+        if (ordered[place]) {
+            addOrdered(place, token);
+            return;
+        }
+        int n = size[place];
+        int[] q = placeTokens[place];
+        if (n == q.length) {
+            int[] grown = new int[n * 2];
+            for (int i = 0; i != n; ++i) {
+                grown[i] = q[(head[place] + i) % n];
+            }
+            head[place] = 0;
+            placeTokens[place] = q = grown;
+        }
+        q[(head[place] + n) % q.length] = token;
+        size[place] = n + 1;
+        marked |= 1L << place;
+    }
+
+    private void addOrdered(int place, int token) {
+        int count = tokens.count(token);
+        int low = size[place] == 0 ? count : Math.min(head[place], count);
+        int end = size[place] == 0 ? count + 1 : Math.max(high[place], count + 1);
+        int[] q = placeTokens[place];
+        if (end - low > q.length) {
+            int length = q.length;
+            while (end - low > length) {
+                length *= 2;
+            }
+            int[] grown = new int[length];
+            Arrays.fill(grown, EMPTY);
+            for (int c = head[place]; size[place] != 0 && c != high[place]; ++c) {
+                grown[c & (length - 1)] = q[c & (q.length - 1)];
+            }
+            placeTokens[place] = q = grown;
+        }
+        int slot = count & (q.length - 1);
+        if (q[slot] != EMPTY) {
+            throw new IllegalStateException("Two tokens with count " + count + " in " + placeNames[place]);
+        }
+        q[slot] = token;
+        head[place] = low;
+        high[place] = end;
+        ++size[place];
+        marked |= 1L << place;
+    }
+
+    // moves an ORDERED place's head up to its lowest held count; the place must not be empty
+    private int firstOrdered(int place) {
+        int[] q = placeTokens[place];
+        int mask = q.length - 1;
+        while (q[head[place] & mask] == EMPTY) {
+            ++head[place];
+        }
+        return head[place] & mask;
+    }
+
+    // the sequence count of the token place hands out next, or -1 if it is empty
+    public int firstCount(int place) {
+        return size[place] == 0 ? -1 : tokens.count(peek(place));
+    }
+
+    private int peek(int place) {
+        return ordered[place] ? placeTokens[place][firstOrdered(place)] : placeTokens[place][head[place]];
+    }
+
+    private int remove(int place) {
+        int[] q = placeTokens[place];
+        int n = --size[place];
+        int token;
+        if (ordered[place]) {
+            int slot = firstOrdered(place);
+            token = q[slot];
+            q[slot] = EMPTY;
+            ++head[place];
+        } else {
+            token = q[head[place]];
+            head[place] = (head[place] + 1) % q.length;
+        }
+        if (n == 0) {
+            marked &= ~(1L << place);
+        }
+        return token;
+    }
+
+    @Override
+    public boolean stepOnce() {
+        // only transitions fed by a marked place can be enabled
+        long candidates = 0;
+        for (long m = marked; m != 0; m &= m - 1) {
+            candidates |= placeConsumers[Long.numberOfTrailingZeros(m)];
+        }
+        long fired = 0;
+        for (long m = candidates; m != 0; m &= m - 1) {
+            int t = Long.numberOfTrailingZeros(m);
+            int place = input[t];
+            if (size[place] != 0 && (guards[t] == null || guards[t].test(tokens, peek(place)))) {
+                taken[t] = remove(place);
+                fired |= 1L << t;
+            }
+        }
+        for (long m = fired; m != 0; m &= m - 1) {
+            int t = Long.numberOfTrailingZeros(m);
+            int token = taken[t];
+            if (transforms[t] != null) {
+                transforms[t].apply(tokens, token);
+            }
+            if (output[t] >= 0) {
+                add(output[t], token);
+            } else {
+                tokens.release(token);
+            }
+        }
+        return fired != 0;
+    }
+
+    public void appendPlace(int place, AsciiBuffer out) {
+        out.append(placeNames[place]);
+        out.append(':');
+        int[] q = placeTokens[place];
+        if (ordered[place]) {
+            boolean first = true;
+            for (int c = head[place]; size[place] != 0 && c != high[place]; ++c) {
+                int token = q[c & (q.length - 1)];
+                if (token != EMPTY) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    formatters[place].append(out, tokens, token);
+                    first = false;
+                }
+            }
+            return;
+        }
+        for (int i = 0; i != size[place]; ++i) {
+            if (i != 0) {
+                out.append(',');
+            }
+            formatters[place].append(out, tokens, q[(head[place] + i) % q.length]);
+        }
+    }
+
+    // every place in declaration order, followed by the data stores
+    public OutputLiner[] getOutputLiners(OutputLiner... stores) {
+        OutputLiner[] out = new OutputLiner[placeNames.length + stores.length];
+        for (int p = 0; p != placeNames.length; ++p) {
+            final int place = p;
+            out[p] = buf -> appendPlace(place, buf);
+        }
+        System.arraycopy(stores, 0, out, placeNames.length, stores.length);
+        return out;
+    }
+}
+
+// The MIPS pipeline as a NetSpec, producing the same trace as the hand-wired components. Places are declared
+// in print order; transitions are declared in the order the components step, with the register write first so
+// decode reads values written in the same cycle.
+final class MipsNet {
+    // the place holding the instructions not yet fetched
+    static final int INM = 0;
+
+    private MipsNet() {}
+
+    // The INM line, copied from text rendered once per instruction as InstructionMemory does, rather than
+    // formatting every token left in the place on every step. INM hands out the program in order, so the tokens
+    // it holds are always the program from its oldest count on.
+    static OutputLiner instructionLiner(CompiledNet net, long[] instructions) {
+        InstructionText text = new InstructionText(instructions);
+        return out -> {
+            out.append("INM:");
+            int next = net.firstCount(INM);
+            if (next >= 0) {
+                text.appendFrom(out, next);
+            }
+        };
+    }
+
+    // the INM line of --compact-inm, as InstructionMemory prints it: the index of the next instruction to fetch
+    static OutputLiner compactInstructionLiner(CompiledNet net, int length) {
+        return out -> {
+            int next = net.firstCount(INM);
+            out.append("INM:PC=").append(next < 0 ? length : next);
+        };
+    }
+
+    static CompiledNet build(long[] instructions, RegisterFile rgf, DataMemory dam, int writebackPorts) {
+        NetSpec spec = new NetSpec();
+        TokenFormatter instruction = (out, ts, t) -> PackedInstruction.appendTo(out, ts.word[t]);
+        TokenFormatter withValues = (out, ts, t) -> out.append('<').append(PackedInstruction.opcode(ts.word[t]).name())
+                .append(',').appendRegister(PackedInstruction.dest(ts.word[t]))
+                .append(',').append((byte) ts.a[t]).append(',').append((byte) ts.b[t]).append('>');
+        TokenFormatter address = (out, ts, t) -> out.append('<').appendRegister(PackedInstruction.dest(ts.word[t]))
+                .append(',').appendUnsigned(ts.a[t]).append('>');
+        TokenFormatter result = (out, ts, t) -> out.append('<').appendRegister(PackedInstruction.dest(ts.word[t]))
+                .append(',').append((byte) ts.a[t]).append('>');
+
+        int inm = spec.place("INM", NetSpec.PlaceKind.FIFO, instruction);
+        assert inm == INM;
+        int inb = spec.place("INB", NetSpec.PlaceKind.FIFO, withValues);
+        int aib = spec.place("AIB", NetSpec.PlaceKind.FIFO, withValues);
+        int lib = spec.place("LIB", NetSpec.PlaceKind.FIFO, withValues);
+        int adb = spec.place("ADB", NetSpec.PlaceKind.FIFO, address);
+        int reb = spec.place("REB", NetSpec.PlaceKind.ORDERED, result);
+
+        // WRITE: commit the oldest results to the register file, one transition per writeback port
+        for (int port = 0; port != writebackPorts; ++port) {
+            spec.transition(reb, -1, null,
+                    (ts, t) -> rgf.write(PackedInstruction.dest(ts.word[t]), (byte) ts.a[t]));
+        }
+        // DECODE: fetch once both sources hold a value, reading them after this cycle's write
+        spec.transition(inm, inb,
+                (ts, t) -> rgf.setRetrievingRegisters(PackedInstruction.source1(ts.word[t]), PackedInstruction.source2(ts.word[t])),
+                (ts, t) -> {
+                    rgf.setRetrievingRegisters(PackedInstruction.source1(ts.word[t]), PackedInstruction.source2(ts.word[t]));
+                    SourceRegisterDataSet data = rgf.getData();
+                    ts.a[t] = data.getSourceReg1Data();
+                    ts.b[t] = data.getSourceReg2Data();
+                });
+        // ISSUE2: loads go to the load instruction buffer
+        spec.transition(inb, lib, (ts, t) -> PackedInstruction.opcode(ts.word[t]).isLoad(), null);
+        // ADDR: compute the load address
+        spec.transition(lib, adb, null, (ts, t) -> ts.a[t] = (byte) ts.a[t] + (byte) ts.b[t]);
+        // ISSUE1: everything else goes to the arithmetic instruction buffer
+        spec.transition(inb, aib, (ts, t) -> !PackedInstruction.opcode(ts.word[t]).isLoad(), null);
+        // LOAD: read data memory
+        spec.transition(adb, reb, null, (ts, t) -> ts.a[t] = dam.getData(ts.a[t]));
+        // ALU: compute the result
+        spec.transition(aib, reb, null,
+                (ts, t) -> ts.a[t] = PackedInstruction.opcode(ts.word[t]).compute((byte) ts.a[t], (byte) ts.b[t]));
+
+        TokenStore tokens = new TokenStore();
+        CompiledNet net = spec.compile(tokens);
+        for (long in : instructions) {
+            net.add(inm, tokens.acquire(in));
+        }
+        return net;
+    }
+
+    // The same places and transitions as build, in the same order, but every token carries one value per lane in
+    // lanes instead of a single value in the token store, so one firing moves the data of every variant. Token
+    // movement only depends on which registers hold a value, so all lanes must start with the same valid set.
+    // A token takes a lane row, kept in its a word, when decode reads its sources and hands it back on writeback,
+    // so the lanes only ever hold the instructions in flight, however long the program.
+    static CompiledNet buildLockstep(long[] instructions, LaneRegisterFile rgf, DataMemory[] dams, int writebackPorts) {
+        int numLanes = dams.length;
+        LaneStore lanes = new LaneStore(numLanes);
+        NetSpec spec = new NetSpec();
+        int inm = spec.place("INM", NetSpec.PlaceKind.FIFO, null);
+        int inb = spec.place("INB", NetSpec.PlaceKind.FIFO, null);
+        int aib = spec.place("AIB", NetSpec.PlaceKind.FIFO, null);
+        int lib = spec.place("LIB", NetSpec.PlaceKind.FIFO, null);
+        int adb = spec.place("ADB", NetSpec.PlaceKind.FIFO, null);
+        int reb = spec.place("REB", NetSpec.PlaceKind.ORDERED, null);
+
+        for (int port = 0; port != writebackPorts; ++port) {
+            spec.transition(reb, -1, null, (ts, t) -> {
+                rgf.write(PackedInstruction.dest(ts.word[t]), lanes.a, ts.a[t] * numLanes);
+                lanes.release(ts.a[t]);
+            });
+        }
+        spec.transition(inm, inb,
+                (ts, t) -> rgf.isValid(PackedInstruction.source1(ts.word[t])) && rgf.isValid(PackedInstruction.source2(ts.word[t])),
+                (ts, t) -> {
+                    ts.a[t] = lanes.acquire();
+                    rgf.read(PackedInstruction.source1(ts.word[t]), lanes.a, ts.a[t] * numLanes);
+                    rgf.read(PackedInstruction.source2(ts.word[t]), lanes.b, ts.a[t] * numLanes);
+                });
+        spec.transition(inb, lib, (ts, t) -> PackedInstruction.opcode(ts.word[t]).isLoad(), null);
+        // the address is folded into LOAD below, since it does not fit a byte lane
+        spec.transition(lib, adb, null, null);
+        spec.transition(inb, aib, (ts, t) -> !PackedInstruction.opcode(ts.word[t]).isLoad(), null);
+        spec.transition(adb, reb, null, (ts, t) -> {
+            byte[] a = lanes.a;
+            byte[] b = lanes.b;
+            for (int l = 0, o = ts.a[t] * numLanes; l != numLanes; ++l, ++o) {
+                a[o] = dams[l].getData(a[o] + b[o]);
+            }
+        });
+        spec.transition(aib, reb, null,
+                (ts, t) -> lanes.compute(PackedInstruction.opcode(ts.word[t]), ts.a[t] * numLanes));
+
+        TokenStore tokens = new TokenStore();
+        CompiledNet net = spec.compile(tokens);
+        for (long in : instructions) {
+            net.add(inm, tokens.acquire(in));
+        }
+        return net;
+    }
+}
+
+// Struct-of-arrays lane data for the lock-step net: the two operands for lane l of the token holding row r sit
+// at r * lanes + l, so each operation is a straight loop over a contiguous run of bytes that the JIT can turn into
+// vector code. Rows are recycled through a free list like TokenStore ids, so only tokens in flight take space.
+class LaneStore {
+    final int lanes;
+    byte[] a;
+    byte[] b;
+    private int[] free = new int[16];
+    private int numFree = 0;
+    private int next = 0;
+
+    public LaneStore(int lanes) {
+        this.lanes = lanes;
+        a = new byte[16 * lanes];
+        b = new byte[16 * lanes];
+    }
+
+    public int acquire() {
+        if (numFree != 0) {
+            return free[--numFree];
+        }
+        if ((next + 1) * lanes > a.length) {
+            int size = a.length * 2;
+            a = Arrays.copyOf(a, size);
+            b = Arrays.copyOf(b, size);
+        }
+        return next++;
+    }
+
+    public void release(int row) {
+        if (numFree == free.length) {
+            free = Arrays.copyOf(free, numFree * 2);
+        }
+        free[numFree++] = row;
+    }
+
+    // a = a op b for every lane of the token at offset
+    public void compute(Opcode op, int offset) {
+        int end = offset + lanes;
+        switch (op) {
+            case ADD:
+                for (int i = offset; i != end; ++i) {
+                    a[i] = (byte) (a[i] + b[i]);
+                }
+                break;
+            case SUB:
+                for (int i = offset; i != end; ++i) {
+                    a[i] = (byte) (a[i] - b[i]);
+                }
+                break;
+            case AND:
+                for (int i = offset; i != end; ++i) {
+                    a[i] = (byte) (a[i] & b[i]);
+                }
+                break;
+            case OR:
+                for (int i = offset; i != end; ++i) {
+                    a[i] = (byte) (a[i] | b[i]);
+                }
+                break;
+            default:
+                throw new IllegalStateException("OPCODE Not one of expected ops.");
+        }
+    }
+}
+
+// One register file per lane, stored register-major so a register's values for every lane are contiguous.
+// Validity is shared, since every lane writes the same registers at the same step.
+class LaneRegisterFile {
+    private final int lanes;
+    private final byte[] vals;
+    private final BitSet valid;
+
+    // every file must have the same registers holding a value
+    public LaneRegisterFile(RegisterFile[] files, int numRegs) {
+        lanes = files.length;
+        vals = new byte[numRegs * lanes];
+        valid = new BitSet(numRegs);
+        for (int r = 0; r != numRegs; ++r) {
+            if (files[0].isValid(r)) {
+                valid.set(r);
+            }
+            for (int l = 0; l != lanes; ++l) {
+                if (files[l].isValid(r) != valid.get(r)) {
+                    throw new IllegalArgumentException("Lock-step lanes must start with the same registers set");
+                }
+                vals[r * lanes + l] = files[l].read(r);
+            }
+        }
+    }
+
+    public boolean isValid(int reg) {
+        return valid.get(reg);
+    }
+
+    public void read(int reg, byte[] dst, int offset) {
+        System.arraycopy(vals, reg * lanes, dst, offset, lanes);
+    }
+
+    public void write(int reg, byte[] src, int offset) {
+        System.arraycopy(src, offset, vals, reg * lanes, lanes);
+        valid.set(reg);
+    }
+
+    // the same text as RegisterFile.appendOutputLine for one lane
+    public void appendOutputLine(AsciiBuffer out, int lane) {
+        out.append("RGF:");
+        int count = 0;
+        for (int i = valid.nextSetBit(0); i >= 0; i = valid.nextSetBit(i + 1)) {
+            if (count > 0) {
+                out.append(',');
+            }
+            out.append('<');
+            out.appendRegister(i);
+            out.append(',');
+            out.append(vals[i * lanes + lane]);
+            out.append('>');
+            ++count;
+        }
+    }
+}
+
+// Runs one program against many register/data memory variants at once, for input sweeps and fault injection.
+// Variants are grouped by which registers start out holding a value; each group runs as one lock-step net with a
+// lane per variant, and every variant gets the headless final state (without throughput) in its output file.
+//
+// The manifest has one "<registers> <datamemory> [output]" line per variant, relative to its own directory; the
+// output defaults to final.txt next to the registers file.
+class LockstepSweep {
+    private final SimOptions opts;
+
+    public LockstepSweep(SimOptions opts) {
+        this.opts = opts;
+    }
+
+    public void run(String instructionsFile, Path manifest) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<String> names = new ArrayList<>();
+        List<RegisterFile> rgfs = new ArrayList<>();
+        List<DataMemory> dams = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifest);
+        for (int i = 0; i != lines.size(); ++i) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (tokens.length != 2 && tokens.length != 3) {
+                throw new IllegalArgumentException(manifest + ":" + (i + 1) + ": expected 2 or 3 paths");
+            }
+            Path registers = base.resolve(tokens[0]);
+            names.add(tokens[0]);
+            rgfs.add(new RegisterFile(registers.toString(), opts.numRegs));
+            dams.add(new DataMemory(base.resolve(tokens[1]).toString()));
+            outputs.add(tokens.length == 3 ? base.resolve(tokens[2]) : registers.resolveSibling(MIPSsim.FILENAME_OUTPUT_HEADLESS));
+        }
+
+        long[] instructions = InstructionMemory.read(instructionsFile, opts.numRegs);
+        boolean[] done = new boolean[rgfs.size()];
+        for (int first = 0; first != rgfs.size(); ++first) {
+            if (done[first]) {
+                continue;
+            }
+            List<Integer> group = new ArrayList<>();
+            for (int v = first; v != rgfs.size(); ++v) {
+                if (!done[v] && sameValidRegisters(rgfs.get(first), rgfs.get(v))) {
+                    group.add(v);
+                    done[v] = true;
+                }
+            }
+            runGroup(instructions, group, names, rgfs, dams, outputs);
+        }
+    }
+
+    private void runGroup(long[] instructions, List<Integer> group, List<String> names, List<RegisterFile> rgfs,
+            List<DataMemory> dams, List<Path> outputs) throws IOException {
+        RegisterFile[] groupRgfs = new RegisterFile[group.size()];
+        DataMemory[] groupDams = new DataMemory[group.size()];
+        for (int l = 0; l != group.size(); ++l) {
+            groupRgfs[l] = rgfs.get(group.get(l));
+            groupDams[l] = dams.get(group.get(l));
+        }
+        LaneRegisterFile rgf = new LaneRegisterFile(groupRgfs, opts.numRegs);
+        CompiledNet net = MipsNet.buildLockstep(instructions, rgf, groupDams, opts.writebackPorts);
+        int count = 0;
+        boolean stepsLeft;
+        do {
+            stepsLeft = net.stepOnce();
+            ++count;
+        } while (stepsLeft);
+
+        AsciiBuffer line = new AsciiBuffer();
+        for (int l = 0; l != group.size(); ++l) {
+            int v = group.get(l);
+            try (PrintStream ps = new PrintStream(Files.newOutputStream(outputs.get(v)))) {
+                line.setLength(0);
+                rgf.appendOutputLine(line, l);
+                ps.write(line.array(), 0, line.length());
+                ps.println();
+                line.setLength(0);
+                groupDams[l].appendOutputLine(line);
+                ps.write(line.array(), 0, line.length());
+                ps.println();
+                ps.println("STEPS:" + count);
+            }
+            System.out.println(names.get(v) + ": " + count + " steps -> " + outputs.get(v));
+        }
+    }
+
+    private boolean sameValidRegisters(RegisterFile x, RegisterFile y) {
+        for (int r = 0; r != opts.numRegs; ++r) {
+            if (x.isValid(r) != y.isValid(r)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+/* Batch Types */
+
+// A single simulation in a batch: the three input files plus where its output should go.
+class BatchJob {
+    final String name;
+    final String instructionsFile;
+    final String registersFile;
+    final String dataMemoryFile;
+    final String outputFile;
+
+    public BatchJob(String name, String instructionsFile, String registersFile, String dataMemoryFile, String outputFile) {
+        this.name = name;
+        this.instructionsFile = instructionsFile;
+        this.registersFile = registersFile;
+        this.dataMemoryFile = dataMemoryFile;
+        this.outputFile = outputFile;
+    }
+
+    // A directory holds one job per subdirectory containing the usual three input files. Anything else
+    // is read as a manifest with one "<instructions> <registers> <datamemory> [output]" line per job,
+    // with relative paths taken from the manifest's directory.
+    static List<BatchJob> load(Path source, boolean headless, boolean binaryTrace) throws IOException {
+        String defaultOutput = headless ? MIPSsim.FILENAME_OUTPUT_HEADLESS
+                : binaryTrace ? MIPSsim.FILENAME_OUTPUT_BINARY_TRACE : MIPSsim.FILENAME_OUTPUT_SIMULATION;
+        List<BatchJob> jobs = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            List<Path> dirs = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(source)) {
+                for (Path dir : ds) {
+                    if (Files.isRegularFile(dir.resolve(MIPSsim.FILENAME_INPUT_INSTRUCTIONS))) {
+                        dirs.add(dir);
+                    }
+                }
+            }
+            Collections.sort(dirs);
+            for (Path dir : dirs) {
+                jobs.add(new BatchJob(dir.toString(),
+                        dir.resolve(MIPSsim.FILENAME_INPUT_INSTRUCTIONS).toString(),
+                        dir.resolve(MIPSsim.FILENAME_INPUT_REGISTER).toString(),
+                        dir.resolve(MIPSsim.FILENAME_INPUT_DATA_MEMORY).toString(),
+                        dir.resolve(defaultOutput).toString()));
+            }
+            return jobs;
+        }
+
+        Path base = source.toAbsolutePath().getParent();
+        List<String> lines = Files.readAllLines(source);
+        for (int i = 0; i != lines.size(); ++i) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (tokens.length != 3 && tokens.length != 4) {
+                throw new IllegalArgumentException(source + ":" + (i + 1) + ": expected 3 or 4 paths");
+            }
+            Path instructions = base.resolve(tokens[0]);
+            String output = tokens.length == 4
+                    ? base.resolve(tokens[3]).toString()
+                    : instructions.resolveSibling(defaultOutput).toString();
+            jobs.add(new BatchJob(tokens[0], instructions.toString(),
+                    base.resolve(tokens[1]).toString(), base.resolve(tokens[2]).toString(), output));
+        }
+        return jobs;
+    }
+}
+
+// Runs independent simulations concurrently, one task per job, on a pool sized to the machine.
+class BatchRunner {
+    private final SimOptions opts;
+
+    public BatchRunner(SimOptions opts) {
+        this.opts = opts;
+    }
+
+    // returns the number of jobs that failed
+    public int run(List<BatchJob> jobs) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+            for (BatchJob job : jobs) {
+                tasks.add(pool.submit(() -> runJob(job)));
+            }
+            int failed = 0;
+            for (int i = 0; i != tasks.size(); ++i) {
+                BatchJob job = jobs.get(i);
+                try {
+                    int count = tasks.get(i).get();
+                    System.out.println(job.name + ": " + count + " steps -> " + job.outputFile);
+                } catch (ExecutionException e) {
+                    System.err.println(job.name + ": FAILED: " + e.getCause());
+                    ++failed;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return failed + tasks.size() - i;
+                }
+            }
+            return failed;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private int runJob(BatchJob job) throws IOException {
+        if (!opts.headless) {
+            return runJob(job, opts, null);
+        }
+        try (PrintStream ps = new PrintStream(job.outputFile)) {
+            return runJob(job, opts, ps);
+        }
+    }
+
+    // Runs one job, or replays it from the result cache when one is configured. Headless reports go to
+    // headlessOut; the traced modes write job.outputFile. Returns the number of steps.
+    static int runJob(BatchJob job, SimOptions opts, PrintStream headlessOut) throws IOException {
+        // a restored run does not start from the input files, so it cannot be looked up by them, and a cached
+        // result would skip the run that stats and checkpoints are taken from
+        ResultCache cache = opts.cacheDir == null || opts.restore != null || opts.stats != null
+                || opts.checkpoint != null ? null : new ResultCache(Paths.get(opts.cacheDir), opts.cacheBytes);
+        String key = null;
+        if (cache != null) {
+            key = cache.key(job, opts);
+            try (ResultCache.Entry hit = cache.lookup(key)) {
+                if (hit != null) {
+                    if (opts.headless) {
+                        hit.copyTo(headlessOut);
+                        headlessOut.println("THROUGHPUT:cached");
+                    } else {
+                        try (OutputStream out = Files.newOutputStream(Paths.get(job.outputFile))) {
+                            hit.copyTo(out);
+                        }
+                    }
+                    return hit.steps;
+                }
+            }
+        }
+
+        if (opts.incremental != null) {
+            return new IncrementalStore(Paths.get(opts.incremental)).run(job, opts);
+        }
+
+        long startBytes = PlaceProfiler.allocatedBytes();
+        long start = System.nanoTime();
+        try (Simulation sim = opts.restore != null ? Simulation.restore(opts.restore, opts)
+                : new Simulation(job.instructionsFile, job.registersFile, job.dataMemoryFile, opts)) {
+            long parsed = System.nanoTime();
+            long parsedBytes = PlaceProfiler.allocatedBytes();
+            int count;
+            if (opts.headless) {
+                count = sim.runHeadless(headlessOut);
+            } else {
+                count = opts.binaryTrace ? sim.runDeltaTraced(job.outputFile) : sim.runTraced(job.outputFile);
+            }
+            sim.checkCheckpointTaken(count);
+            if (opts.stats != null) {
+                sim.writeStats(Paths.get(job.outputFile).resolveSibling(opts.stats));
+            }
+            if (opts.profiler != null) {
+                // reading the inputs and wiring the places, then every step of the run including trace output
+                long end = System.nanoTime();
+                long endBytes = PlaceProfiler.allocatedBytes();
+                opts.profiler.add("parse", 1, parsed - start, startBytes < 0 ? -1 : parsedBytes - startBytes);
+                opts.profiler.add("run", count, end - parsed, startBytes < 0 ? -1 : endBytes - parsedBytes);
+            }
+            if (cache != null) {
+                if (opts.headless) {
+                    ByteArrayOutputStream state = new ByteArrayOutputStream();
+                    sim.printFinalState(new PrintStream(state), count);
+                    cache.store(key, count, new ByteArrayInputStream(state.toByteArray()), state.size());
+                } else {
+                    Path output = Paths.get(job.outputFile);
+                    try (InputStream in = Files.newInputStream(output)) {
+                        cache.store(key, count, in, Files.size(output));
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
+
+// On-disk cache of finished simulations, keyed by a SHA-256 of the simulator version, the options that change
+// the output, and the bytes of the three input files. Each entry is one file holding the step count and either
+// the trace file or the headless final state. Inputs, traces and entries are only ever streamed in chunks, so
+// a cached trace costs no more heap than writing it did.
+//
+// Several processes may share a directory: entries are written to a temporary file and renamed into place, so a
+// reader sees a whole entry or none, and a file that is missing or fails its header check is simply a miss.
+// A hit touches the entry's modification time, and after every store the least recently used entries are
+// deleted until the directory fits in maxBytes.
+class ResultCache {
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+    private static final int MAGIC = 0x4d495052; // "MIPR"
+    private static final int HEADER_BYTES = 16;
+    private static final int CHUNK_BYTES = 1 << 16;
+    private static final String SUFFIX = ".entry";
+
+    // A hit, holding its entry file open so that a concurrent eviction or replacement cannot pull the data away
+    // while it is copied out.
+    static class Entry implements AutoCloseable {
+        final int steps;
+        private final FileChannel channel;
+
+        Entry(int steps, FileChannel channel) {
+            this.steps = steps;
+            this.channel = channel;
+        }
+
+        // copies the cached trace or final state to out
+        void copyTo(OutputStream out) throws IOException {
+            copy(Channels.newInputStream(channel.position(HEADER_BYTES)), out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+
+    public ResultCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    public String key(BatchJob job, SimOptions opts) throws IOException {
+        MessageDigest md = sha256();
+        String mode = opts.headless ? "headless" : opts.binaryTrace ? "binary" : "text";
+        byte[] options = (MIPSsim.VERSION + " " + mode + " " + opts.numRegs + " " + opts.compactInstructionTrace
+                + " " + opts.writebackPorts + " " + opts.traceFrom + ":" + opts.traceTo + "/" + opts.traceEvery
+                + " " + opts.tracePlaces).getBytes(StandardCharsets.UTF_8);
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(options.length).array());
+        md.update(options);
+        digestFile(md, Paths.get(job.instructionsFile));
+        digestFile(md, Paths.get(job.registersFile));
+        digestFile(md, Paths.get(job.dataMemoryFile));
+        return hexDigest(md);
+    }
+
+    // every Java platform has SHA-256
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // finishes md and spells out the digest in lower case hex, for a file name or index key
+    static String hexDigest(MessageDigest md) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // Feeds a file to md a chunk at a time, length prefixed, so moving bytes from one file to the next changes
+    // the key.
+    static void digestFile(MessageDigest md, Path file) throws IOException {
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(Files.size(file)).array());
+        byte[] chunk = new byte[CHUNK_BYTES];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n; (n = in.read(chunk)) >= 0; ) {
+                md.update(chunk, 0, n);
+            }
+        }
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[CHUNK_BYTES];
+        for (int n; (n = in.read(chunk)) >= 0; ) {
+            out.write(chunk, 0, n);
+        }
+    }
+
+    // the cached result, to be closed by the caller, or null on a miss
+    public Entry lookup(String key) {
+        Path entry = dir.resolve(key + SUFFIX);
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(entry, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && ch.read(header) >= 0) {
+                // short reads are retried
+            }
+            header.flip();
+            if (header.remaining() != HEADER_BYTES || header.getInt() != MAGIC) {
+                ch.close();
+                return null;
+            }
+            int steps = header.getInt();
+            long length = header.getLong();
+            if (length != ch.size() - HEADER_BYTES) {
+                ch.close();
+                return null;
+            }
+            try {
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                // evicted meanwhile; the open channel still reads it
+            }
+            return new Entry(steps, ch);
+        } catch (IOException e) {
+            try {
+                ch.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            return null;
+        }
+    }
+
+    // stores the length bytes of data under key, unless the entry would not fit the cache at all
+    public void store(String key, int steps, InputStream data, long length) throws IOException {
+        if (HEADER_BYTES + length > maxBytes) {
+            return;
+        }
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(steps);
+                out.writeLong(length);
+                copy(data, out);
+                if (out.size() != HEADER_BYTES + length) {
+                    throw new IOException("Cached result changed size while it was stored");
+                }
+            }
+            Files.move(tmp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                    entries.add(p);
+                    times.add(attrs.lastModifiedTime().toMillis());
+                    sizes.add(attrs.size());
+                    total += attrs.size();
+                } catch (IOException e) {
+                    // removed by another process
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i != order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(times.get(x), times.get(y)));
+        for (int i = 0; i != order.length && total > maxBytes; ++i) {
+            Files.deleteIfExists(entries.get(order[i]));
+            total -= sizes.get(order[i]);
+        }
+    }
+}
+
+// Long running mode that keeps one warm JVM for many small jobs. Jobs arrive as lines on an input stream:
+//
+//   <id> FILES <instructions> <registers> <datamemory> [<output>]
+//   <id> INLINE [<output>]    then the lines of the three files, each file ended by a line holding "."
+//   QUIT
+//
+// Every job gets its own Simulation on a shared pool, so jobs run concurrently and may finish out of order.
+// Without an output path the headless report comes back as "<id> <line>" lines; with one, the trace is
+// written there as in a normal run. A job ends with "<id> OK <steps>" or "<id> ERROR <message>", and its
+// lines are never interleaved with another job's. Java 8 has no Unix domain sockets, so the transport is the
+// two streams, which a wrapper can connect to a pipe or socket.
+class SimulationServer {
+    private static final String CMD_FILES = "FILES";
+    private static final String CMD_INLINE = "INLINE";
+    private static final String CMD_QUIT = "QUIT";
+    private static final String END_OF_FILE = ".";
+
+    private final SimOptions opts;
+    private final PrintStream out;
+    private Path scratch = null;
+    private int nextScratch = 0;
+
+    public SimulationServer(SimOptions opts, OutputStream out) {
+        this.opts = opts;
+        this.out = new PrintStream(new BufferedOutputStream(out), false);
+    }
+
+    public void serve(InputStream in) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equals(CMD_QUIT)) {
+                    break;
+                }
+                String[] tokens = line.split("\\s+");
+                String id = tokens[0];
+                List<Path> inlineFiles = new ArrayList<>();
+                BatchJob job;
+                try {
+                    job = parseJob(tokens, reader, inlineFiles);
+                } catch (IOException | RuntimeException e) {
+                    // a job that cannot even be set up fails alone; the server keeps taking jobs
+                    deleteAll(inlineFiles);
+                    respond(id + " ERROR " + message(e) + "\n");
+                    continue;
+                }
+                pool.execute(() -> runJob(id, job, inlineFiles));
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (scratch != null) {
+                Files.deleteIfExists(scratch);
+            }
+            out.flush();
+        }
+    }
+
+    private BatchJob parseJob(String[] tokens, BufferedReader reader, List<Path> inlineFiles) throws IOException {
+        if (tokens.length >= 5 && tokens.length <= 6 && tokens[1].equals(CMD_FILES)) {
+            return new BatchJob(tokens[0], tokens[2], tokens[3], tokens[4], tokens.length == 6 ? tokens[5] : null);
+        }
+        if (tokens.length >= 2 && tokens.length <= 3 && tokens[1].equals(CMD_INLINE)) {
+            // all three files are read off the input even if one cannot be stored, so none is taken for commands
+            IOException failure = null;
+            for (int i = 0; i != 3; ++i) {
+                try {
+                    inlineFiles.add(readInlineFile(reader));
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return new BatchJob(tokens[0], inlineFiles.get(0).toString(), inlineFiles.get(1).toString(),
+                    inlineFiles.get(2).toString(), tokens.length == 3 ? tokens[2] : null);
+        }
+        throw new IllegalArgumentException("expected FILES <instructions> <registers> <datamemory> [<output>] or INLINE [<output>]");
+    }
+
+    // copies lines up to the next "." into a scratch file; if the file cannot be written, the lines are still read
+    private Path readInlineFile(BufferedReader reader) throws IOException {
+        Path file = null;
+        PrintStream ps = null;
+        IOException failure = null;
+        try {
+            if (scratch == null) {
+                scratch = Files.createTempDirectory("mipssim");
+            }
+            file = scratch.resolve(Integer.toString(nextScratch++));
+            ps = new PrintStream(new BufferedOutputStream(Files.newOutputStream(file)), false, "UTF-8");
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals(END_OF_FILE)) {
+                if (ps != null) {
+                    ps.print(line);
+                    ps.print('\n');
+                }
+            }
+            if (line == null) {
+                throw new IllegalArgumentException("input ended inside an INLINE job");
+            }
+        } finally {
+            if (ps != null) {
+                ps.close();
+                // PrintStream keeps write errors to itself
+                if (ps.checkError() && failure == null) {
+                    failure = new IOException("could not write " + file);
+                }
+            }
+            if (failure != null && file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return file;
+    }
+
+    private void runJob(String id, BatchJob job, List<Path> inlineFiles) {
+        StringBuilder response = new StringBuilder();
+        try {
+            SimOptions jobOpts = opts.copy();
+            jobOpts.headless = job.outputFile == null;
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            int steps;
+            try (PrintStream ps = new PrintStream(report, false, "UTF-8")) {
+                steps = BatchRunner.runJob(job, jobOpts, ps);
+            }
+            String text = report.toString("UTF-8");
+            if (!text.isEmpty()) {
+                for (String line : text.split("\\r?\\n")) {
+                    response.append(id).append(' ').append(line).append('\n');
+                }
+            }
+            response.append(id).append(" OK ").append(steps).append('\n');
+        } catch (Throwable e) {
+            // whatever stops the job, even an Error from deep in the net, the client still gets its one reply
+            response.setLength(0);
+            response.append(id).append(" ERROR ").append(message(e)).append('\n');
+        } finally {
+            deleteAll(inlineFiles);
+        }
+        respond(response);
+    }
+
+    // the error text of a reply, kept to one line so it cannot break the protocol
+    private static String message(Throwable e) {
+        String message = e.getMessage();
+        if (message == null || message.trim().isEmpty()) {
+            message = e.getClass().getSimpleName();
+        }
+        return message.replaceAll("[\\r\\n]+", " ").trim();
+    }
+
+    private void respond(CharSequence lines) {
+        synchronized (out) {
+            out.append(lines);
+            out.flush();
+        }
+    }
+
+    private static void deleteAll(List<Path> files) {
+        for (Path f : files) {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException e) {
+                // left in the temp directory
+            }
+        }
+    }
+}
+
+// Keeps what a traced run needs to redo only the part of the next run that a program edit can change: the
+// program, a key of the other inputs, a copy of the trace, and a checkpoint (without the program) every INTERVAL
+// steps, each with the trace position its step starts at and how far instruction memory had fetched.
+//
+// Until instruction memory looks at the first changed instruction, the edited program steps exactly like the old
+// one. Fetch only ever looks at the instruction after the last one fetched, so the latest checkpoint whose fetch
+// position is before the last unchanged instruction is safe to resume from. The trace before it is copied from the
+// old one; since the INM line lists every instruction not yet fetched, its tail is rewritten for the new program
+// on the way, unless --compact-inm is in use.
+//
+// The index is the commit point: it is deleted before a run starts overwriting checkpoints, and the trace and then
+// the index are renamed into place once the run is done, so a run killed midway leaves no index and the next one
+// starts over. A lock file keeps two processes from using one directory at the same time.
+class IncrementalStore {
+    static final int INTERVAL = 256;
+    private static final int MAGIC = 0x4d495049; // "MIPI"
+    private static final int VERSION = 1;
+    private static final String INDEX = "index";
+    private static final String TRACE = "trace.txt";
+    private static final String LOCK = "lock";
+
+    private final Path dir;
+    // checkpoints of the run in progress, in step order
+    private final List<int[]> checkpoints = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private int skipStep = -1;
+
+    public IncrementalStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    public int run(BatchJob job, SimOptions opts) throws IOException {
+        try (FileChannel lock = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // released when the channel closes
+            lock.lock();
+            return runLocked(job, opts);
+        }
+    }
+
+    private int runLocked(BatchJob job, SimOptions opts) throws IOException {
+        if (opts.compiledNet || opts.headless || opts.binaryTrace || opts.restore != null || opts.stats != null
+                || opts.filtersTrace()) {
+            throw new IllegalArgumentException("Incremental runs need the full text trace of the component engine");
+        }
+        if (opts.checkpoint != null) {
+            // an unchanged program replays the stored trace without running, so a checkpoint would be skipped
+            throw new IllegalArgumentException("Incremental runs keep their own checkpoints and cannot write --checkpoint");
+        }
+        long[] program = InstructionMemory.read(job.instructionsFile, opts.numRegs);
+        String key = inputsKey(job, opts);
+
+        // what the last run left behind, if it had the same inputs apart from the program
+        long[] oldProgram = null;
+        List<int[]> oldCheckpoints = new ArrayList<>();
+        List<Long> oldOffsets = new ArrayList<>();
+        int oldSteps = 0;
+        Path index = dir.resolve(INDEX);
+        if (Files.isRegularFile(index) && Files.isRegularFile(dir.resolve(TRACE))) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+                if (in.readInt() == MAGIC && in.readUnsignedByte() == VERSION && in.readUTF().equals(key)) {
+                    oldSteps = in.readInt();
+                    oldProgram = new long[in.readInt()];
+                    for (int i = 0; i != oldProgram.length; ++i) {
+                        oldProgram[i] = in.readLong();
+                    }
+                    int n = in.readInt();
+                    for (int i = 0; i != n; ++i) {
+                        oldCheckpoints.add(new int[] { in.readInt(), in.readInt() });
+                        oldOffsets.add(in.readLong());
+                    }
+                }
+            }
+        }
+
+        if (oldProgram != null && Arrays.equals(oldProgram, program)) {
+            Files.copy(dir.resolve(TRACE), Paths.get(job.outputFile), StandardCopyOption.REPLACE_EXISTING);
+            return oldSteps;
+        }
+
+        // the checkpoints are about to be overwritten with the new program's state
+        Files.deleteIfExists(index);
+
+        // the latest checkpoint taken before fetch looked at a changed instruction
+        int resume = -1;
+        int count = 0;
+        if (oldProgram != null) {
+            int changed = 0;
+            while (changed != Math.min(oldProgram.length, program.length) && oldProgram[changed] == program[changed]) {
+                ++changed;
+            }
+            for (int i = 0; i != oldCheckpoints.size(); ++i) {
+                if (oldCheckpoints.get(i)[1] + 1 < changed) {
+                    resume = i;
+                }
+            }
+            if (resume >= 0) {
+                count = resume(job, opts, program, oldProgram, changed, oldCheckpoints, oldOffsets, resume);
+            }
+        }
+        if (resume < 0) {
+            try (Simulation sim = new Simulation(job.instructionsFile, job.registersFile, job.dataMemoryFile, opts);
+                    TraceWriter trace = new TraceWriter(job.outputFile)) {
+                count = sim.traceSteps(trace, true, this);
+            }
+        }
+
+        // remember this run for the next one
+        Path trace = Files.createTempFile(dir, TRACE, ".tmp");
+        Path newIndex = Files.createTempFile(dir, INDEX, ".tmp");
+        try {
+            Files.copy(Paths.get(job.outputFile), trace, StandardCopyOption.REPLACE_EXISTING);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(newIndex)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(key);
+                out.writeInt(count);
+                out.writeInt(program.length);
+                for (long in : program) {
+                    out.writeLong(in);
+                }
+                out.writeInt(checkpoints.size());
+                for (int i = 0; i != checkpoints.size(); ++i) {
+                    out.writeInt(checkpoints.get(i)[0]);
+                    out.writeInt(checkpoints.get(i)[1]);
+                    out.writeLong(offsets.get(i));
+                }
+            }
+            Files.move(trace, dir.resolve(TRACE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(newIndex, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(trace);
+            Files.deleteIfExists(newIndex);
+        }
+        for (int[] old : oldCheckpoints) {
+            if (old[0] > lastStep()) {
+                Files.deleteIfExists(checkpointFile(old[0]));
+            }
+        }
+        return count;
+    }
+
+    // copies the old trace up to checkpoint resume and simulates on from there, returning the number of steps
+    private int resume(BatchJob job, SimOptions opts, long[] program, long[] oldProgram, int changed,
+            List<int[]> oldCheckpoints, List<Long> oldOffsets, int resume) throws IOException {
+        int step = oldCheckpoints.get(resume)[0];
+        long end = oldOffsets.get(resume);
+        try (Simulation sim = Simulation.restore(checkpointFile(step).toString(), opts, program);
+                TraceWriter trace = new TraceWriter(job.outputFile)) {
+            // every INM line in the copied steps ends with the text of the old program from the changed instruction
+            // on, which is swapped for the new program's
+            AsciiBuffer oldTail = new AsciiBuffer();
+            AsciiBuffer newTail = new AsciiBuffer();
+            for (int i = changed; i < oldProgram.length; ++i) {
+                oldTail.append(',');
+                PackedInstruction.appendTo(oldTail, oldProgram[i]);
+            }
+            for (int i = changed; i < program.length; ++i) {
+                newTail.append(',');
+                PackedInstruction.appendTo(newTail, program[i]);
+            }
+
+            AsciiBuffer line = new AsciiBuffer();
+            int next = 0;
+            long read = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(dir.resolve(TRACE)), 1 << 16)) {
+                while (read < end) {
+                    while (next <= resume && oldOffsets.get(next) == read) {
+                        checkpoints.add(oldCheckpoints.get(next));
+                        offsets.add(trace.position());
+                        ++next;
+                    }
+                    line.setLength(0);
+                    int b;
+                    do {
+                        b = in.read();
+                        if (b < 0) {
+                            throw new IllegalStateException("Stored trace is shorter than its index");
+                        }
+                        line.append((char) b);
+                        ++read;
+                    } while (b != '\n');
+                    if (!opts.compactInstructionTrace && startsWith(line, "INM:")) {
+                        line.setLength(line.length() - 1 - oldTail.length());
+                        line.append(newTail.array(), 0, newTail.length());
+                        line.append('\n');
+                    }
+                    trace.write(line);
+                }
+            }
+            while (next <= resume) {
+                checkpoints.add(oldCheckpoints.get(next));
+                offsets.add(trace.position());
+                ++next;
+            }
+            // the resumed checkpoint is already recorded
+            skipStep = step;
+            return sim.traceSteps(trace, step == 0, this);
+        }
+    }
+
+    private static boolean startsWith(AsciiBuffer line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i != prefix.length(); ++i) {
+            if (line.array()[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // called by the traced loop before every INTERVAL-th step
+    void record(Simulation sim, int step, long offset) throws IOException {
+        if (step == skipStep) {
+            return;
+        }
+        sim.checkpoint(step, checkpointFile(step).toString(), false);
+        checkpoints.add(new int[] { step, sim.fetchPosition() });
+        offsets.add(offset);
+    }
+
+    private int lastStep() {
+        return checkpoints.isEmpty() ? -1 : checkpoints.get(checkpoints.size() - 1)[0];
+    }
+
+    private Path checkpointFile(int step) {
+        return dir.resolve("step-" + step + ".snap");
+    }
+
+    // everything but the program that decides the trace
+    private static String inputsKey(BatchJob job, SimOptions opts) throws IOException {
+        MessageDigest md = ResultCache.sha256();
+        md.update((MIPSsim.VERSION + " " + opts.numRegs + " " + opts.compactInstructionTrace + " " + opts.writebackPorts
+                + " ").getBytes(StandardCharsets.UTF_8));
+        ResultCache.digestFile(md, Paths.get(job.registersFile));
+        ResultCache.digestFile(md, Paths.get(job.dataMemoryFile));
+        return ResultCache.hexDigest(md);
+    }
+}
+
+/* Primary Interfaces */
+interface OutputLiner {
+    // writes this place's trace line, such as "REB:<R1,5>", without the newline
+    void appendOutputLine(AsciiBuffer out);
+
+    default String getOutputLine() {
+        AsciiBuffer out = new AsciiBuffer(64);
+        appendOutputLine(out);
+        return out.toString();
+    }
+}
+interface Steppable extends OutputLiner {
+    void fillBuffer();
+    boolean step(); // Returns true if was able to step
+}
+interface DataRetriever<O> {
+    O getData();
+}
+interface CycleEngine {
+    boolean stepOnce(); // Runs one fill/step cycle, returning true if anything was able to step
+}
+
+/* Pure Helper Types */
+// Registers are plain indices so the register file can be sized at runtime. "R<n>" is register n.
+enum Opcode {
+    ADD, SUB, AND, OR, LD;
+    private static final Opcode[] VALUES = values();
+    // matches raw ASCII bytes against the opcode names, returning null if none match
+    static Opcode fromBytes(byte[] chars, int len) {
+        for (Opcode op : VALUES) {
+            String name = op.name();
+            if (name.length() != len) {
+                continue;
+            }
+            int i = 0;
+            while (i != len && name.charAt(i) == chars[i]) {
+                ++i;
+            }
+            if (i == len) {
+                return op;
+            }
+        }
+        return null;
+    }
+    static Opcode fromCode(int code) {
+        return VALUES[code];
+    }
+    public boolean isLoad() { return this == LD; }
+    // result of an ALU op on two register values
+    public byte compute(byte val1, byte val2) {
+        int resultInt;
+        switch (this) {
+            case ADD:
+                resultInt = val1 + val2;
+                break;
+
+            case SUB:
+                resultInt = val1 - val2;
+                break;
+
+            case AND:
+                resultInt = val1 & val2;
+                break;
+
+            case OR:
+                resultInt = val1 | val2;
+                break;
+            default:
+                throw new IllegalStateException("OPCODE Not one of expected ops.");
+        }
+        return (byte) resultInt;
+    }
+}
+// Packs a decoded instruction into a single long so instruction memory can be held in a primitive array.
+// Layout, from the low bits up: src2, src1, dest (REG_BITS each), opcode (OPCODE_BITS), count (COUNT_BITS).
+final class PackedInstruction {
+    static final int REG_BITS = 12;
+    // the most registers an instruction can name
+    static final int MAX_REGS = 1 << REG_BITS;
+    static final int OPCODE_BITS = 4;
+    static final int COUNT_BITS = 24;
+
+    private static final int SRC2_SHIFT = 0;
+    private static final int SRC1_SHIFT = SRC2_SHIFT + REG_BITS;
+    private static final int DEST_SHIFT = SRC1_SHIFT + REG_BITS;
+    private static final int OPCODE_SHIFT = DEST_SHIFT + REG_BITS;
+    private static final int COUNT_SHIFT = OPCODE_SHIFT + OPCODE_BITS;
+
+    private static final long REG_MASK = (1L << REG_BITS) - 1;
+    private static final long OPCODE_MASK = (1L << OPCODE_BITS) - 1;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private PackedInstruction() {}
+
+    static long pack(int count, Opcode opcode, int dest, int source1, int source2) {
+        if (count < 0 || count > COUNT_MASK) {
+            throw new IllegalArgumentException("Instruction count out of range: " + count);
+        }
+        return ((long) count << COUNT_SHIFT)
+                | ((long) opcode.ordinal() << OPCODE_SHIFT)
+                | ((long) dest << DEST_SHIFT)
+                | ((long) source1 << SRC1_SHIFT)
+                | ((long) source2 << SRC2_SHIFT);
+    }
+
+    static int count(long packed) {
+        return (int) ((packed >>> COUNT_SHIFT) & COUNT_MASK);
+    }
+
+    static Opcode opcode(long packed) {
+        return Opcode.fromCode((int) ((packed >>> OPCODE_SHIFT) & OPCODE_MASK));
+    }
+
+    static int dest(long packed) {
+        return (int) ((packed >>> DEST_SHIFT) & REG_MASK);
+    }
+
+    static int source1(long packed) {
+        return (int) ((packed >>> SRC1_SHIFT) & REG_MASK);
+    }
+
+    static int source2(long packed) {
+        return (int) ((packed >>> SRC2_SHIFT) & REG_MASK);
+    }
+
+    static String toString(long packed) {
+        AsciiBuffer out = new AsciiBuffer(32);
+        appendTo(out, packed);
+        return out.toString();
+    }
+
+    static void appendTo(AsciiBuffer out, long packed) {
+        out.append('<').append(opcode(packed).name()).append(',').appendRegister(dest(packed)).append(',')
+                .appendRegister(source1(packed)).append(',').appendRegister(source2(packed)).append('>');
+    }
+}
+// Tokens are mutable so that each place can recycle them instead of allocating on every firing.
+class Instruction implements Comparable<Instruction> {
+
+    private long packed;
+
+    public Instruction() {}
+
+    public Instruction(long packed) {
+        this.packed = packed;
+    }
+
+    void load(long packed) {
+        this.packed = packed;
+    }
+
+    // writes the token's fields to a checkpoint; restore reads them back in the same order
+    void save(DataOutputStream out) throws IOException {
+        out.writeLong(packed);
+    }
+
+    void restore(DataInputStream in) throws IOException {
+        packed = in.readLong();
+    }
+
+    static void saveToken(DataOutputStream out, Instruction token) throws IOException {
+        out.writeBoolean(token != null);
+        if (token != null) {
+            token.save(out);
+        }
+    }
+
+    static <T extends Instruction> T restoreToken(DataInputStream in, TokenPool<T> pool) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        T token = pool.acquire();
+        token.restore(in);
+        return token;
+    }
+
+    protected void copyFrom(Instruction i) {
+        this.packed = i.packed;
+    }
+
+    // hands the token back to the place that produced it, once its consumer is done with it
+    public void release() {}
+
+    public int getCount() {
+        return PackedInstruction.count(packed);
+    }
+
+    public Opcode getOpcode() {
+        return PackedInstruction.opcode(packed);
+    }
+
+    public int getDest() {
+        return PackedInstruction.dest(packed);
+    }
+
+    public int getSource1() {
+        return PackedInstruction.source1(packed);
+    }
+
+    public int getSource2() {
+        return PackedInstruction.source2(packed);
+    }
+
+    // writes the token as it appears in the trace
+    public void appendTo(AsciiBuffer out) {
+        PackedInstruction.appendTo(out, packed);
+    }
+
+    @Override
+    public String toString() {
+        AsciiBuffer out = new AsciiBuffer(32);
+        appendTo(out);
+        return out.toString();
+    }
+
+    @Override
+    public int compareTo(Instruction o) {
+        return Integer.compare(getCount(), o.getCount());
+    }
+}
+class ValueInstruction extends Instruction {
+
+    private final TokenPool<ValueInstruction> pool;
+    private byte register1Data;
+    private byte register2Data;
+
+    protected ValueInstruction(TokenPool<ValueInstruction> pool) {
+        this.pool = pool;
+    }
+
+    // copies the register data out, since the register file reuses its data set every cycle
+    protected ValueInstruction set(Instruction i, SourceRegisterDataSet sourceRegisterDataSet) {
+        copyFrom(i);
+        this.register1Data = sourceRegisterDataSet.getSourceReg1Data();
+        this.register2Data = sourceRegisterDataSet.getSourceReg2Data();
+        return this;
+    }
+
+    public byte getRegister1Data() {
+        return register1Data;
+    }
+
+    public byte getRegister2Data() {
+        return register2Data;
+    }
+
+    @Override
+    void save(DataOutputStream out) throws IOException {
+        super.save(out);
+        out.writeByte(register1Data);
+        out.writeByte(register2Data);
+    }
+
+    @Override
+    void restore(DataInputStream in) throws IOException {
+        super.restore(in);
+        register1Data = in.readByte();
+        register2Data = in.readByte();
+    }
+
+    @Override
+    public void release() {
+        pool.release(this);
+    }
+
+    @Override
+    public void appendTo(AsciiBuffer out) {
+        out.append('<').append(getOpcode().name()).append(',').appendRegister(getDest()).append(',')
+                .append(register1Data).append(',').append(register2Data).append('>');
+    }
+}
+class AddressDecodedInstruction extends Instruction {
+    private final TokenPool<AddressDecodedInstruction> pool;
+    private int addr;
+
+    public AddressDecodedInstruction(TokenPool<AddressDecodedInstruction> pool) {
+        this.pool = pool;
+    }
+
+    public AddressDecodedInstruction set(Instruction i, int addr) {
+        copyFrom(i);
+        this.addr = addr;
+        return this;
+    }
+
+    @Override
+    public void release() {
+        pool.release(this);
+    }
+
+    public int getAddr() {
+        return addr;
+    }
+
+    @Override
+    void save(DataOutputStream out) throws IOException {
+        super.save(out);
+        out.writeInt(addr);
+    }
+
+    @Override
+    void restore(DataInputStream in) throws IOException {
+        super.restore(in);
+        addr = in.readInt();
+    }
+
+    @Override
+    public void appendTo(AsciiBuffer out) {
+        out.append('<').appendRegister(getDest()).append(',').appendUnsigned(getAddr()).append('>');
+    }
+}
+class IntermediateResult extends Instruction {
+    private final TokenPool<IntermediateResult> pool;
+    private byte value;
+
+    public IntermediateResult(TokenPool<IntermediateResult> pool) {
+        this.pool = pool;
+    }
+
+    public IntermediateResult set(Instruction i, byte value) {
+        copyFrom(i);
+        this.value = value;
+        return this;
+    }
+
+    @Override
+    public void release() {
+        pool.release(this);
+    }
+
+    public byte getValue() {
+        return value;
+    }
+
+    @Override
+    void save(DataOutputStream out) throws IOException {
+        super.save(out);
+        out.writeByte(value);
+    }
+
+    @Override
+    void restore(DataInputStream in) throws IOException {
+        super.restore(in);
+        value = in.readByte();
+    }
+
+    @Override
+    public void appendTo(AsciiBuffer out) {
+        out.append('<').appendRegister(getDest()).append(',').append(value).append('>');
+    }
+}
+class SourceRegisterDataSet {
+    private byte sourceReg1Data;
+    private byte sourceReg2Data;
+
+    public SourceRegisterDataSet set(byte sourceReg1Data, byte sourceReg2Data) {
+        this.sourceReg1Data = sourceReg1Data;
+        this.sourceReg2Data = sourceReg2Data;
+        return this;
+    }
+
+    public byte getSourceReg1Data() {
+        return sourceReg1Data;
+    }
+
+    public byte getSourceReg2Data() {
+        return sourceReg2Data;
+    }
+}
+// Free list of tokens owned by a single place. Once the pipeline has warmed up, every acquire is
+// satisfied by a token that a downstream consumer released, so steady state firing allocates nothing.
+class TokenPool<T extends Instruction> {
+    private final Function<TokenPool<T>, T> factory;
+    private final ArrayDeque<T> free = new ArrayDeque<>();
+
+    public TokenPool(Function<TokenPool<T>, T> factory) {
+        this.factory = factory;
+    }
+
+    public T acquire() {
+        T token = free.pollLast();
+        if (token == null) {
+            return factory.apply(this);
+        }
+        return token;
+    }
+
+    public void release(T token) {
+        free.addLast(token);
+    }
+}
+
+// Reorder buffer indexed by sequence count. A token lives in slot count & mask, so adding is a single store,
+// taking the oldest is a forward scan from the lowest count held, and walking the window from low to high
+// visits tokens in count order. The ring doubles when the span of held counts outgrows it.
+class ReorderBuffer<T extends Instruction> {
+    private Object[] slots = new Object[8];
+    private int low = 0;
+    private int high = 0;
+    private int size = 0;
+
+    public void add(T token) {
+        int count = token.getCount();
+        int newLow = size == 0 ? count : Math.min(low, count);
+        int newHigh = size == 0 ? count + 1 : Math.max(high, count + 1);
+        if (newHigh - newLow > slots.length) {
+            int length = slots.length;
+            while (newHigh - newLow > length) {
+                length *= 2;
+            }
+            Object[] grown = new Object[length];
+            for (int c = low; size != 0 && c != high; ++c) {
+                grown[c & (length - 1)] = slots[c & (slots.length - 1)];
+            }
+            slots = grown;
+        }
+        int slot = count & (slots.length - 1);
+        if (slots[slot] != null) {
+            throw new IllegalStateException("Two results with count " + count + " in the reorder buffer");
+        }
+        slots[slot] = token;
+        low = newLow;
+        high = newHigh;
+        ++size;
+    }
+
+    // removes and returns the token with the lowest count, or null when empty
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if (size == 0) {
+            return null;
+        }
+        int mask = slots.length - 1;
+        while (slots[low & mask] == null) {
+            ++low;
+        }
+        T token = (T) slots[low & mask];
+        slots[low & mask] = null;
+        ++low;
+        if (--size == 0) {
+            high = low;
+        }
+        return token;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int low() {
+        return low;
+    }
+
+    public int high() {
+        return high;
+    }
+
+    // the token with the given count, or null; only counts in [low, high) are meaningful
+    @SuppressWarnings("unchecked")
+    public T at(int count) {
+        return (T) slots[count & (slots.length - 1)];
+    }
+}
+
+/* Input Types */
+
+// Streaming reader for the "<a,b,...>" tuple files. It scans bytes straight out of a buffered channel, so no
+// per-line Strings or regex matches are created, and malformed input is reported with its line and column.
+class TupleReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int EOF = -1;
+    private static final int MAX_WORD = 8;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] word = new byte[MAX_WORD];
+    private int line = 1;
+    private int column = 1;
+
+    public TupleReader(String filename) throws IOException {
+        this.filename = filename;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        buf.flip();
+    }
+
+    // moves to the start of the next tuple, returning false once only whitespace is left
+    public boolean nextTuple() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            read();
+            c = peek();
+        }
+        if (c == EOF) {
+            return false;
+        }
+        expect('<');
+        return true;
+    }
+
+    public void separator() throws IOException {
+        expect(',');
+    }
+
+    public void endTuple() throws IOException {
+        expect('>');
+    }
+
+    public Opcode readOpcode() throws IOException {
+        int startColumn = column;
+        int len = 0;
+        int c = peek();
+        while (c >= 'A' && c <= 'Z') {
+            if (len == MAX_WORD) {
+                throw error("opcode too long");
+            }
+            word[len++] = (byte) read();
+            c = peek();
+        }
+        Opcode op = Opcode.fromBytes(word, len);
+        if (op == null) {
+            throw new IllegalArgumentException(filename + ":" + line + ":" + startColumn + ": unknown opcode");
+        }
+        return op;
+    }
+
+    public int readRegister(int numRegs) throws IOException {
+        expect('R');
+        return (int) readDigits(numRegs - 1L);
+    }
+
+    public byte readByte() throws IOException {
+        if (peek() == '-') {
+            read();
+            return (byte) -readDigits(-(long) Byte.MIN_VALUE);
+        }
+        return (byte) readDigits(Byte.MAX_VALUE);
+    }
+
+    // unsigned 32 bit address
+    public int readAddress() throws IOException {
+        return (int) readDigits(0xFFFFFFFFL);
+    }
+
+    private long readDigits(long max) throws IOException {
+        int c = peek();
+        if (c < '0' || c > '9') {
+            throw error("expected a digit");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > max) {
+                throw error("number out of range (max " + max + ")");
+            }
+            read();
+            c = peek();
+        }
+        return value;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        read();
+    }
+
+    private IllegalArgumentException error(String msg) throws IOException {
+        int c = peek();
+        String found = c == EOF ? "end of file" : c == '\n' ? "end of line" : "'" + (char) c + "'";
+        return new IllegalArgumentException(filename + ":" + line + ":" + column + ": " + msg + ", found " + found);
+    }
+
+    private int peek() throws IOException {
+        if (!buf.hasRemaining()) {
+            buf.clear();
+            int n;
+            do {
+                n = channel.read(buf);
+            } while (n == 0);
+            buf.flip();
+            if (n < 0) {
+                return EOF;
+            }
+        }
+        return buf.get(buf.position()) & 0xff;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c == EOF) {
+            return EOF;
+        }
+        buf.get();
+        if (c == '\n') {
+            ++line;
+            column = 1;
+        } else {
+            ++column;
+        }
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/* Output Types */
+
+// Growable buffer of ASCII trace text. Numbers and register names are formatted straight into the array, so once
+// it has grown to fit the longest step, building a step allocates nothing.
+class AsciiBuffer {
+    private byte[] buf;
+    private int len = 0;
+
+    public AsciiBuffer() {
+        this(256);
+    }
+
+    public AsciiBuffer(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    public AsciiBuffer append(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+        return this;
+    }
+
+    // s must be ASCII
+    public AsciiBuffer append(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i != n; ++i) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public AsciiBuffer append(byte[] bytes, int offset, int n) {
+        ensure(n);
+        System.arraycopy(bytes, offset, buf, len, n);
+        len += n;
+        return this;
+    }
+
+    public AsciiBuffer append(int v) {
+        if (v < 0) {
+            append('-');
+            return appendDigits(-(long) v);
+        }
+        return appendDigits(v);
+    }
+
+    // v read as unsigned, like Integer.toUnsignedString
+    public AsciiBuffer appendUnsigned(int v) {
+        return appendDigits(v & 0xffffffffL);
+    }
+
+    public AsciiBuffer appendRegister(int index) {
+        return append('R').append(index);
+    }
+
+    // v must not be negative
+    private AsciiBuffer appendDigits(long v) {
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            ++digits;
+        }
+        ensure(digits);
+        len += digits;
+        int i = len;
+        do {
+            buf[--i] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+        return this;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public void setLength(int len) {
+        this.len = len;
+    }
+
+    // the backing array; only the first length() bytes are meaningful
+    public byte[] array() {
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.ISO_8859_1);
+    }
+}
+
+// Streams the trace to disk as it is produced. The caller fills one buffer while a background
+// thread drains the other into the file channel, so memory use does not grow with the run length.
+class TraceWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final Thread writer;
+
+    private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer draining = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // bytes written so far
+    private long position = 0;
+
+    // guarded by this
+    private boolean drainPending = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    public TraceWriter(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writer = new Thread(this::drainLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void write(AsciiBuffer text) throws IOException {
+        position += text.length();
+        byte[] bytes = text.array();
+        int offset = 0;
+        int remaining = text.length();
+        while (remaining != 0) {
+            if (!filling.hasRemaining()) {
+                swap();
+            }
+            int n = Math.min(remaining, filling.remaining());
+            filling.put(bytes, offset, n);
+            offset += n;
+            remaining -= n;
+        }
+    }
+
+    private synchronized void swap() throws IOException {
+        while (drainPending && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        ByteBuffer tmp = draining;
+        draining = filling;
+        filling = tmp;
+        draining.flip();
+        drainPending = true;
+        notifyAll();
+    }
+
+    private void drainLoop() {
+        while (true) {
+            ByteBuffer toDrain;
+            synchronized (this) {
+                while (!drainPending && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!drainPending) {
+                    return;
+                }
+                toDrain = draining;
+            }
+            IOException err = null;
+            try {
+                while (toDrain.hasRemaining()) {
+                    channel.write(toDrain);
+                }
+            } catch (IOException e) {
+                err = e;
+            }
+            toDrain.clear();
+            synchronized (this) {
+                drainPending = false;
+                if (err != null) {
+                    failure = err;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            swap();
+        } catch (IOException | RuntimeException e) {
+            try {
+                stopWriter();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        stopWriter();
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    // Lets the drain thread finish what is pending and end, then closes the file. Runs even when the last swap
+    // failed, so the thread is never left parked. An interrupt while waiting for it is kept for the caller.
+    private void stopWriter() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        try {
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+}
+
+// Binary trace that stores, for every step, only the tokens each place gained or lost since the step before.
+// A full keyframe of every place is written every KEYFRAME_INTERVAL steps and indexed in a footer, so a reader
+// can jump to any step without replaying the whole run.
+//
+// Layout: header (magic, version, place prefixes), then one record per step: KEYFRAME with every place's
+// tokens, or DELTA with (place, tokens kept from the front, tokens removed, tokens inserted) for each place that
+// changed. END follows the last step, then the keyframe index (step, file offset) and finally its offset.
+class DeltaTraceWriter implements AutoCloseable {
+    static final int MAGIC = 0x4d495054; // "MIPT"
+    static final int VERSION = 1;
+    static final int KEYFRAME_INTERVAL = 256;
+    static final int RECORD_END = 0;
+    static final int RECORD_KEYFRAME = 1;
+    static final int RECORD_DELTA = 2;
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private List<List<String>> prev = null;
+    private final List<Integer> keyframeSteps = new ArrayList<>();
+    private final List<Long> keyframeOffsets = new ArrayList<>();
+
+    public DeltaTraceWriter(String filename) throws IOException {
+        counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(filename)), 1 << 16));
+        out = new DataOutputStream(counter);
+    }
+
+    // lines are the full getOutputLine text of each place, in print order
+    public void writeStep(int step, String[] lines) throws IOException {
+        if (prev == null) {
+            prev = new ArrayList<>(Collections.nCopies(lines.length, Collections.<String>emptyList()));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarInt(out, lines.length);
+            for (String line : lines) {
+                writeToken(out, line.substring(0, line.indexOf(':') + 1));
+            }
+        }
+
+        // a trace resumed from a checkpoint starts with a keyframe wherever it starts
+        if (step % KEYFRAME_INTERVAL == 0 || keyframeSteps.isEmpty()) {
+            keyframeSteps.add(step);
+            keyframeOffsets.add(counter.count);
+            out.writeByte(RECORD_KEYFRAME);
+            for (int i = 0; i != lines.length; ++i) {
+                List<String> tokens = tokenize(lines[i]);
+                writeVarInt(out, tokens.size());
+                for (String t : tokens) {
+                    writeToken(out, t);
+                }
+                prev.set(i, tokens);
+            }
+            return;
+        }
+
+        out.writeByte(RECORD_DELTA);
+        for (int i = 0; i != lines.length; ++i) {
+            List<String> tokens = tokenize(lines[i]);
+            List<String> old = prev.get(i);
+            int max = Math.min(old.size(), tokens.size());
+            int front = 0;
+            while (front != max && old.get(front).equals(tokens.get(front))) {
+                ++front;
+            }
+            int back = 0;
+            while (back != max - front
+                    && old.get(old.size() - 1 - back).equals(tokens.get(tokens.size() - 1 - back))) {
+                ++back;
             }
+            int removed = old.size() - front - back;
+            int inserted = tokens.size() - front - back;
+            if (removed != 0 || inserted != 0) {
+                writeVarInt(out, i + 1);
+                writeVarInt(out, front);
+                writeVarInt(out, removed);
+                writeVarInt(out, inserted);
+                for (int t = front; t != front + inserted; ++t) {
+                    writeToken(out, tokens.get(t));
+                }
+            }
+            prev.set(i, tokens);
         }
-        throw new IllegalArgumentException(rStr);
+        // place 0 ends the delta
+        writeVarInt(out, 0);
     }
-    public int getIndex() { return index; }
-}
-class Instruction implements Comparable<Instruction> {
 
-    private final int count;
-    private final String opcode;
-    private final Register dest;
-    private final Register source1;
-    private final Register source2;
-
-    public Instruction(int count, String opcode, Register dest, Register source1, Register source2) {
-        this.count = count;
-        this.opcode = opcode;
-        this.dest = dest;
-        this.source1 = source1;
-        this.source2 = source2;
+    @Override
+    public void close() throws IOException {
+        out.writeByte(RECORD_END);
+        long indexOffset = counter.count;
+        writeVarInt(out, keyframeSteps.size());
+        for (int i = 0; i != keyframeSteps.size(); ++i) {
+            writeVarInt(out, keyframeSteps.get(i));
+            out.writeLong(keyframeOffsets.get(i));
+        }
+        out.writeLong(indexOffset);
+        out.close();
     }
 
-    protected Instruction(Instruction i) {
-        this.count = i.count;
-        this.opcode = i.opcode;
-        this.dest = i.dest;
-        this.source1 = i.source1;
-        this.source2 = i.source2;
+    // splits "PFX:<a,b>,<c,d>" into "<a,b>" and "<c,d>", only breaking on commas outside angle brackets
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int start = line.indexOf(':') + 1;
+        int depth = 0;
+        for (int i = start; i != line.length(); ++i) {
+            char c = line.charAt(i);
+            if (c == '<') {
+                ++depth;
+            } else if (c == '>') {
+                --depth;
+            } else if (c == ',' && depth == 0) {
+                tokens.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (start != line.length()) {
+            tokens.add(line.substring(start));
+        }
+        return tokens;
     }
 
-    public String getOpcode() {
-        return opcode;
+    private static void writeToken(DataOutputStream out, String token) throws IOException {
+        writeVarInt(out, token.length());
+        out.writeBytes(token);
     }
 
-    public Register getDest() {
-        return dest;
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
     }
 
-    public Register getSource1() {
-        return source1;
-    }
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
 
-    public Register getSource2() {
-        return source2;
-    }
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
 
-    @Override
-    public String toString() {
-        return "<" + getOpcode() + "," + getDest() + "," + getSource1() + "," +
-                getSource2() + ">";
-    }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
 
-    @Override
-    public int compareTo(Instruction o) {
-        return Integer.compare(count, o.count);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
     }
 }
-class ValueInstruction extends Instruction {
-
-    SourceRegisterDataSet sourceRegisterDataSet;
 
-    protected ValueInstruction(Instruction i, SourceRegisterDataSet sourceRegisterDataSet) {
-        super(i);
-        this.sourceRegisterDataSet = sourceRegisterDataSet;
-    }
+// Rebuilds simulation.txt text from a DeltaTraceWriter file, either whole or for a single step.
+class DeltaTraceReader {
+    private final DataInputStream in;
+    private final String[] prefixes;
+    private final List<List<String>> tokens = new ArrayList<>();
 
-    public byte getRegister1Data() {
-        return sourceRegisterDataSet.getSourceReg1Data();
+    private DeltaTraceReader(DataInputStream in) throws IOException {
+        this.in = in;
+        if (in.readInt() != DeltaTraceWriter.MAGIC || in.readByte() != DeltaTraceWriter.VERSION) {
+            throw new IOException("Not a delta trace file");
+        }
+        prefixes = new String[readVarInt(in)];
+        for (int i = 0; i != prefixes.length; ++i) {
+            prefixes[i] = readToken(in);
+            tokens.add(new ArrayList<>());
+        }
     }
 
-    public byte getRegister2Data() {
-        return sourceRegisterDataSet.getSourceReg2Data();
+    public static void decodeAll(String filename, PrintStream out) throws IOException {
+        // the trace of a restored run starts past step 0, at its first keyframe
+        Index index = readIndex(filename);
+        try (DataInputStream in = open(filename, 0)) {
+            DeltaTraceReader reader = new DeltaTraceReader(in);
+            int step = index.steps.length == 0 ? 0 : index.steps[0];
+            boolean more = reader.readRecord();
+            while (more) {
+                reader.print(step, out);
+                more = reader.readRecord();
+                if (more) {
+                    out.print("\n");
+                }
+                ++step;
+            }
+        }
     }
 
-    @Override
-    public String toString() {
-        return "<" + getOpcode() + "," + getDest().toString() + "," +
-        sourceRegisterDataSet.getSourceReg1Data() + "," + sourceRegisterDataSet.getSourceReg2Data() + ">";
-    }
-}
-class AddressDecodedInstruction extends Instruction {
-    private byte addr;
+    public static void decodeStep(String filename, int step, PrintStream out) throws IOException {
+        long keyframeOffset = -1;
+        int keyframeStep = 0;
+        Index index = readIndex(filename);
+        for (int i = 0; i != index.steps.length; ++i) {
+            if (index.steps[i] <= step) {
+                keyframeStep = index.steps[i];
+                keyframeOffset = index.offsets[i];
+            }
+        }
+        if (keyframeOffset < 0) {
+            throw new IllegalArgumentException("No step " + step + " in " + filename);
+        }
 
-    public AddressDecodedInstruction(Instruction i, byte addr) {
-        super(i);
-        this.addr = addr;
+        String[] prefixes;
+        try (DataInputStream header = open(filename, 0)) {
+            prefixes = new DeltaTraceReader(header).prefixes;
+        }
+        try (DataInputStream in = open(filename, keyframeOffset)) {
+            DeltaTraceReader reader = new DeltaTraceReader(in, prefixes);
+            for (int s = keyframeStep; s <= step; ++s) {
+                if (!reader.readRecord()) {
+                    throw new IllegalArgumentException("No step " + step + " in " + filename);
+                }
+            }
+            reader.print(step, out);
+        }
     }
 
-    public byte getAddr() {
-        return addr;
+    private DeltaTraceReader(DataInputStream in, String[] prefixes) {
+        this.in = in;
+        this.prefixes = prefixes;
+        for (int i = 0; i != prefixes.length; ++i) {
+            tokens.add(new ArrayList<>());
+        }
     }
 
-    @Override
-    public String toString() {
-        return "<"+getDest().toString()+","+getAddr()+">";
+    // the footer: every keyframe's step and file offset
+    private static class Index {
+        int[] steps;
+        long[] offsets;
     }
-}
-class IntermediateResult extends Instruction {
-    private byte value;
 
-    public IntermediateResult(Instruction i, byte value) {
-        super(i);
-        this.value = value;
+    private static Index readIndex(String filename) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(Long.BYTES);
+            ch.read(last, ch.size() - Long.BYTES);
+            last.flip();
+            DataInputStream index = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(ch.position(last.getLong()))));
+            int numKeyframes = readVarInt(index);
+            Index result = new Index();
+            result.steps = new int[numKeyframes];
+            result.offsets = new long[numKeyframes];
+            for (int i = 0; i != numKeyframes; ++i) {
+                result.steps[i] = readVarInt(index);
+                result.offsets[i] = index.readLong();
+            }
+            return result;
+        }
     }
 
-    public byte getValue() {
-        return value;
+    private static DataInputStream open(String filename, long offset) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        ch.position(offset);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 1 << 16));
     }
 
-    @Override
-    public String toString() {
-        return "<"+getDest().toString()+","+value+">";
+    // applies the next record, returning false at the end of the trace
+    private boolean readRecord() throws IOException {
+        int type = in.readByte();
+        if (type == DeltaTraceWriter.RECORD_END) {
+            return false;
+        }
+        if (type == DeltaTraceWriter.RECORD_KEYFRAME) {
+            for (List<String> place : tokens) {
+                place.clear();
+                int n = readVarInt(in);
+                for (int t = 0; t != n; ++t) {
+                    place.add(readToken(in));
+                }
+            }
+            return true;
+        }
+        if (type != DeltaTraceWriter.RECORD_DELTA) {
+            throw new IOException("Corrupt delta trace: record type " + type);
+        }
+        for (int place = readVarInt(in); place != 0; place = readVarInt(in)) {
+            List<String> list = tokens.get(place - 1);
+            int front = readVarInt(in);
+            int removed = readVarInt(in);
+            int inserted = readVarInt(in);
+            list.subList(front, front + removed).clear();
+            for (int t = 0; t != inserted; ++t) {
+                list.add(front + t, readToken(in));
+            }
+        }
+        return true;
     }
-}
-class SourceRegisterDataSet {
-    private byte sourceReg1Data;
-    private byte sourceReg2Data;
 
-    public SourceRegisterDataSet(byte sourceReg1Data, byte sourceReg2Data) {
-        this.sourceReg1Data = sourceReg1Data;
-        this.sourceReg2Data = sourceReg2Data;
+    private void print(int step, PrintStream out) {
+        out.print("STEP " + step + ":" + "\n");
+        for (int i = 0; i != prefixes.length; ++i) {
+            out.print(prefixes[i]);
+            List<String> place = tokens.get(i);
+            for (int t = 0; t != place.size(); ++t) {
+                if (t != 0) {
+                    out.print(",");
+                }
+                out.print(place.get(t));
+            }
+            out.print("\n");
+        }
     }
 
-    public byte getSourceReg1Data() {
-        return sourceReg1Data;
+    private static String readToken(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
     }
 
-    public byte getSourceReg2Data() {
-        return sourceReg2Data;
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
     }
 }
 
 /* Non-steppable Types */
 interface DataMemoryRetriever {
-    byte getData(byte address);
+    byte getData(int address); // address is an unsigned 32 bit word address
 }
+// Sparse 32 bit data memory. Pages are allocated off-heap only when something is stored in them, and each
+// page tracks which of its words are populated, so output and setup cost follow the populated entries.
+// The address splits into a directory index, a table index and an offset within the page.
 class DataMemory implements OutputLiner, DataMemoryRetriever {
-    private byte[] mem;
-    public DataMemory(int numRegs, String filename) throws IOException {
-        // init memory
-        mem = new byte[numRegs];
-        for (int i = 0; i != mem.length; ++i) {
-            mem[i] = -1;
-        }
-
-        List<String> lines = Files.readAllLines(Paths.get(filename));
-        int numRegInputs;
-        if (lines.get(lines.size()-1).equals("")) {
-            numRegInputs = lines.size()-1;
-        } else {
-            numRegInputs = lines.size();
+    static final int PAGE_BITS = 12;
+    private static final int TABLE_BITS = 10;
+    private static final int DIRECTORY_BITS = 32 - PAGE_BITS - TABLE_BITS;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    // what a load sees at an address that was never populated
+    private static final byte UNPOPULATED = -1;
+
+    private static class Page {
+        final ByteBuffer data = ByteBuffer.allocateDirect(PAGE_SIZE);
+        final BitSet populated = new BitSet(PAGE_SIZE);
+    }
+
+    private final Page[][] directory = new Page[1 << DIRECTORY_BITS][];
+    // page numbers of every allocated page, kept in unsigned ascending order for output
+    private int[] pageNumbers = new int[4];
+    private int numPages = 0;
+
+    // empty, to be filled by restore
+    DataMemory() {}
+
+    public DataMemory(String filename) throws IOException {
+        try (TupleReader in = new TupleReader(filename)) {
+            while (in.nextTuple()) {
+                int address = in.readAddress();
+                in.separator();
+                byte data = in.readByte();
+                in.endTuple();
+                store(address, data);
+            }
+        }
+    }
+
+    // every populated address and its value, in output order
+    void save(DataOutputStream out) throws IOException {
+        int count = 0;
+        for (int p = 0; p != numPages; ++p) {
+            count += findPage(pageNumbers[p] << PAGE_BITS, false).populated.cardinality();
+        }
+        out.writeInt(count);
+        for (int p = 0; p != numPages; ++p) {
+            int base = pageNumbers[p] << PAGE_BITS;
+            Page page = findPage(base, false);
+            for (int i = page.populated.nextSetBit(0); i >= 0; i = page.populated.nextSetBit(i + 1)) {
+                out.writeInt(base | i);
+                out.writeByte(page.data.get(i));
+            }
+        }
+    }
+
+    void restore(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i != count; ++i) {
+            int address = in.readInt();
+            store(address, in.readByte());
         }
+    }
+
+    private void store(int address, byte data) {
+        Page page = findPage(address, true);
+        int offset = address & (PAGE_SIZE - 1);
+        page.data.put(offset, data);
+        page.populated.set(offset);
+    }
 
-        if (numRegInputs > mem.length) {
-            throw new IllegalArgumentException("Too many registers in reg file");
+    private Page findPage(int address, boolean allocate) {
+        int dirIndex = address >>> (PAGE_BITS + TABLE_BITS);
+        int tableIndex = (address >>> PAGE_BITS) & (TABLE_SIZE - 1);
+        Page[] table = directory[dirIndex];
+        if (table == null) {
+            if (!allocate) {
+                return null;
+            }
+            table = new Page[TABLE_SIZE];
+            directory[dirIndex] = table;
         }
+        Page page = table[tableIndex];
+        if (page == null && allocate) {
+            page = new Page();
+            table[tableIndex] = page;
+            addPageNumber(address >>> PAGE_BITS);
+        }
+        return page;
+    }
 
-        for (int i = 0; i != numRegInputs; ++i) {
-            String[] tokens = lines.get(i).split("<|,|>");
-            // retrieve vals needed for instruction;
-            int regNum = Integer.parseInt(tokens[1]);
-            // convert to registers
-            byte regData = Byte.parseByte(tokens[2]);
-            mem[regNum] = regData;
+    private void addPageNumber(int pageNumber) {
+        if (numPages == pageNumbers.length) {
+            pageNumbers = Arrays.copyOf(pageNumbers, numPages * 2);
         }
+        int i = numPages;
+        while (i > 0 && pageNumbers[i - 1] > pageNumber) {
+            pageNumbers[i] = pageNumbers[i - 1];
+            --i;
+        }
+        pageNumbers[i] = pageNumber;
+        ++numPages;
     }
 
-    public String getOutputLine() {
-        StringBuilder sb = new StringBuilder("DAM:");
+    @Override
+    public void appendOutputLine(AsciiBuffer out) {
+        out.append("DAM:");
         int count = 0;
-        for (int i = 0; i < mem.length; ++i) {
-            if (mem[i] == -1) {
-                continue;
-            }
-            if (count != 0) {
-                sb.append(",");
+        for (int p = 0; p != numPages; ++p) {
+            int base = pageNumbers[p] << PAGE_BITS;
+            Page page = findPage(base, false);
+            for (int i = page.populated.nextSetBit(0); i >= 0; i = page.populated.nextSetBit(i + 1)) {
+                if (count != 0) {
+                    out.append(',');
+                }
+                out.append('<');
+                out.appendUnsigned(base | i);
+                out.append(',');
+                out.append(page.data.get(i));
+                out.append('>');
+                ++count;
             }
-            sb.append("<");
-            sb.append(i);
-            sb.append(",");
-            sb.append(mem[i]);
-            sb.append(">");
-            ++count;
         }
-        return sb.toString();
     }
 
     @Override
-    public byte getData(byte address) {
-        return mem[address];
+    public byte getData(int address) {
+        Page page = findPage(address, false);
+        int offset = address & (PAGE_SIZE - 1);
+        if (page == null || !page.populated.get(offset)) {
+            return UNPOPULATED;
+        }
+        return page.data.get(offset);
     }
 }
 
 /* Extensible Types */
-abstract class BasicRegister<I, O> implements Steppable, DataRetriever<O> {
+abstract class BasicRegister<I extends Instruction, O> implements Steppable, DataRetriever<O> {
 
     private String prefix;
     private DataRetriever<I> inSrc;
@@ -325,6 +4539,22 @@ abstract class BasicRegister<I, O> implements Steppable, DataRetriever<O> {
         curr = null;
     }
 
+    boolean isOccupied() {
+        return curr != null;
+    }
+
+    // only the current token survives between cycles; next is always consumed by step
+    void save(DataOutputStream out) throws IOException {
+        if (next != null) {
+            throw new IllegalStateException("Checkpoint taken in the middle of a cycle");
+        }
+        Instruction.saveToken(out, curr);
+    }
+
+    void restore(DataInputStream in, TokenPool<I> pool) throws IOException {
+        curr = Instruction.restoreToken(in, pool);
+    }
+
     @Override
     public void fillBuffer() {
         next = inSrc.getData();
@@ -341,11 +4571,11 @@ abstract class BasicRegister<I, O> implements Steppable, DataRetriever<O> {
     }
 
     @Override
-    public String getOutputLine() {
-        if (curr == null) {
-            return prefix + ":";
+    public void appendOutputLine(AsciiBuffer out) {
+        out.append(prefix).append(':');
+        if (curr != null) {
+            curr.appendTo(out);
         }
-        return prefix+":"+curr.toString();
     }
 
     @Override
@@ -368,40 +4598,111 @@ abstract class BasicRegister<I, O> implements Steppable, DataRetriever<O> {
 class InstructionMemory implements Steppable, DataRetriever<Instruction> {
 
     private RegisterRetrieveSetter registerRetrieveSetter;
-    private Instruction[] instructions;
+    private long[] instructions;
     private int currInstruction = -1;
+    private final Instruction fetched = new Instruction();
     private boolean canStep = false;
     private boolean canGetData = false;
 
-    public InstructionMemory(RegisterRetrieveSetter registerRetrieveSetter, String filename) throws IOException {
+    private InstructionText text;
+    private boolean compactOutput = false;
+
+    public InstructionMemory(RegisterRetrieveSetter registerRetrieveSetter, String filename, int numRegs) throws IOException {
+        this(registerRetrieveSetter, read(filename, numRegs));
+    }
+
+    public InstructionMemory(RegisterRetrieveSetter registerRetrieveSetter, long[] instructions) {
         this.registerRetrieveSetter = registerRetrieveSetter;
-        List<String> lines = Files.readAllLines(Paths.get(filename));
-        int numInstructions;
-        if (lines.get(lines.size()-1).equals("")) {
-            numInstructions = lines.size()-1;
-        } else {
-            numInstructions = lines.size();
+        setInstructions(instructions);
+    }
+
+    private void setInstructions(long[] instructions) {
+        this.instructions = instructions;
+        text = new InstructionText(instructions);
+    }
+
+    // with the whole program in a checkpoint, a restore needs no instructions file; a length of -1 marks it left out
+    void save(DataOutputStream out, boolean withProgram) throws IOException {
+        out.writeInt(withProgram ? instructions.length : -1);
+        if (withProgram) {
+            for (long in : instructions) {
+                out.writeLong(in);
+            }
+        }
+        out.writeInt(currInstruction);
+        out.writeBoolean(canStep);
+        out.writeBoolean(canGetData);
+    }
+
+    // program, if not null, is used in place of the saved one
+    void restore(DataInputStream in, long[] program) throws IOException {
+        int length = in.readInt();
+        long[] saved = length < 0 ? null : new long[length];
+        for (int i = 0; i < length; ++i) {
+            saved[i] = in.readLong();
+        }
+        if (program == null) {
+            program = saved;
         }
-        instructions = new Instruction[numInstructions];
-        for (int i = 0; i != numInstructions; ++i) {
-            String[] tokens = lines.get(i).split("<|,|>");
-            // retrieve vals needed for instruction;
-            String opcode = tokens[1];
-            // convert to registers
-            Register rdest = Register.fromString(tokens[2]);
-            Register rsrc1 = Register.fromString(tokens[3]);
-            Register rsrc2 = Register.fromString(tokens[4]);
-            instructions[i] = new Instruction(i, opcode, rdest, rsrc1, rsrc2);
+        if (program == null) {
+            throw new IllegalArgumentException("Checkpoint was saved without its program");
         }
+        setInstructions(program);
+        currInstruction = in.readInt();
+        canStep = in.readBoolean();
+        canGetData = in.readBoolean();
+    }
+
+    // parses an instructions file into packed instructions, numbered in file order
+    static long[] read(String filename, int numRegs) throws IOException {
+        long[] read = new long[1024];
+        int numInstructions = 0;
+        try (TupleReader in = new TupleReader(filename)) {
+            while (in.nextTuple()) {
+                // retrieve vals needed for instruction;
+                Opcode opcode = in.readOpcode();
+                in.separator();
+                // convert to registers
+                int rdest = in.readRegister(numRegs);
+                in.separator();
+                int rsrc1 = in.readRegister(numRegs);
+                in.separator();
+                int rsrc2 = in.readRegister(numRegs);
+                in.endTuple();
+                if (numInstructions == read.length) {
+                    read = Arrays.copyOf(read, numInstructions * 2);
+                }
+                read[numInstructions] = PackedInstruction.pack(numInstructions, opcode, rdest, rsrc1, rsrc2);
+                ++numInstructions;
+            }
+        }
+        return Arrays.copyOf(read, numInstructions);
+    }
+
+    int fetchPosition() {
+        return currInstruction;
+    }
+
+    int length() {
+        return instructions.length;
+    }
+
+    long instructionAt(int index) {
+        return instructions[index];
+    }
+
+    // in compact mode the INM line only shows the index of the next instruction to fetch
+    public void setCompactOutput(boolean compactOutput) {
+        this.compactOutput = compactOutput;
     }
 
     @Override
     public void fillBuffer() {
         int nextInstruction = currInstruction + 1;
         if (nextInstruction < instructions.length && nextInstruction >= 0) {
-            Instruction in = instructions[nextInstruction];
+            long in = instructions[nextInstruction];
             // can step is determined if the registers exist
-            canStep = registerRetrieveSetter.setRetrievingRegisters(in.getSource1(), in.getSource2());
+            canStep = registerRetrieveSetter.setRetrievingRegisters(PackedInstruction.source1(in), PackedInstruction.source2(in));
         } else {
             canStep = false;
         }
@@ -420,62 +4721,161 @@ class InstructionMemory implements Steppable, DataRetriever<Instruction> {
 
     public Instruction getData() {
         if (canGetData && currInstruction >= 0 && currInstruction < instructions.length) {
-            return instructions[currInstruction];
+            fetched.load(instructions[currInstruction]);
+            return fetched;
         }
         return null;
     }
 
     @Override
-    public String getOutputLine() {
-        StringBuilder sb = new StringBuilder("INM:");
-        for (int i = currInstruction+1; i < instructions.length; ++i) {
-            if (i != currInstruction+1) {
-                sb.append(",");
+    public void appendOutputLine(AsciiBuffer out) {
+        out.append("INM:");
+        int first = currInstruction + 1;
+        if (compactOutput) {
+            out.append("PC=");
+            out.append(first);
+            return;
+        }
+        text.appendFrom(out, first);
+    }
+}
+
+// Trace text of a program's instructions for the INM line, rendered once per chunk of CHUNK_SIZE instructions.
+// Each instruction is stored with a leading ',' so any suffix of the line is a straight copy. Fetch only moves
+// forward, so a chunk is dropped once a line starts past it.
+class InstructionText {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final long[] instructions;
+    private final byte[][] chunkText;
+    private final int[][] chunkOffsets;
+    // chunks before this one are dropped
+    private int live = 0;
+
+    public InstructionText(long[] instructions) {
+        this.instructions = instructions;
+        int numChunks = (instructions.length + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        chunkText = new byte[numChunks][];
+        chunkOffsets = new int[numChunks][];
+    }
+
+    // appends instructions first to the end, comma separated; first must never go back below an earlier call's
+    public void appendFrom(AsciiBuffer out, int first) {
+        if (first >= instructions.length) {
+            return;
+        }
+        int chunk = first >>> CHUNK_BITS;
+        for (; live < chunk; ++live) {
+            chunkText[live] = null;
+            chunkOffsets[live] = null;
+        }
+        byte[] text = render(chunk);
+        // skip the leading ',' of the first instruction
+        int offset = chunkOffsets[chunk][first & (CHUNK_SIZE - 1)] + 1;
+        out.append(text, offset, text.length - offset);
+        for (++chunk; chunk < chunkText.length; ++chunk) {
+            text = render(chunk);
+            out.append(text, 0, text.length);
+        }
+    }
+
+    private byte[] render(int chunk) {
+        if (chunkText[chunk] == null) {
+            int start = chunk << CHUNK_BITS;
+            int end = Math.min(start + CHUNK_SIZE, instructions.length);
+            int[] offsets = new int[end - start];
+            AsciiBuffer out = new AsciiBuffer();
+            for (int i = start; i != end; ++i) {
+                offsets[i - start] = out.length();
+                out.append(',');
+                PackedInstruction.appendTo(out, instructions[i]);
             }
-            sb.append(instructions[i].toString());
+            chunkOffsets[chunk] = offsets;
+            chunkText[chunk] = Arrays.copyOf(out.array(), out.length());
         }
-        return sb.toString();
+        return chunkText[chunk];
     }
 }
 
 interface RegisterRetrieveSetter {
     // sets the registers to be retrieved next step, returning true if both exist
-    boolean setRetrievingRegisters(Register r1, Register r2); // returns value of register if avail, null if DNE.
+    boolean setRetrievingRegisters(int r1, int r2);
 }
 
 class RegisterFile implements Steppable, RegisterRetrieveSetter, DataRetriever<SourceRegisterDataSet> {
     private byte[] vals;
+    // registers that hold a value; any byte, including -1, is a legal value
+    private BitSet valid;
     private DataRetriever<IntermediateResult> regRGF;
 
-    private Register toRetrieve1;
-    private Register toRetrieve2;
+    private int toRetrieve1;
+    private int toRetrieve2;
+    private final SourceRegisterDataSet retrieved = new SourceRegisterDataSet();
 
-    // nextData
-    private IntermediateResult next;
+    // nextData, one slot per writeback port
+    private final IntermediateResult[] next;
+    private int numNext = 0;
+    // results written since the start, counted for pipeline stats
+    private long retired = 0;
 
-    public RegisterFile(String filename) throws IOException {
-        this.regRGF = regRGF;
-        // init all valls to -1;
-        vals = new byte[Register.values().length];
-        for (int i = 0; i != vals.length; ++i) {
-            vals[i] = -1;
-        }
+    static final int MAX_WRITEBACK_PORTS = 16;
+
+    public RegisterFile(String filename, int numRegs) throws IOException {
+        this(filename, numRegs, 1);
+    }
+
+    public RegisterFile(String filename, int numRegs, int writebackPorts) throws IOException {
+        this(numRegs, writebackPorts);
         // read in regs from file
-        List<String> lines = Files.readAllLines(Paths.get(filename));
+        try (TupleReader in = new TupleReader(filename)) {
+            while (in.nextTuple()) {
+                int reg = in.readRegister(numRegs);
+                in.separator();
+                byte num = in.readByte();
+                in.endTuple();
+                vals[reg] = num;
+                valid.set(reg);
+            }
+        }
+    }
 
-        int numToRead;
-        if (lines.get(lines.size()-1).equals("")) {
-            numToRead = lines.size()-1;
-        } else {
-            numToRead = lines.size();
+    // no register holds a value yet
+    public RegisterFile(int numRegs, int writebackPorts) {
+        if (numRegs <= 0 || numRegs > PackedInstruction.MAX_REGS) {
+            throw new IllegalArgumentException("Register count must be between 1 and " + PackedInstruction.MAX_REGS);
+        }
+        if (writebackPorts <= 0 || writebackPorts > MAX_WRITEBACK_PORTS) {
+            throw new IllegalArgumentException("Writeback ports must be between 1 and " + MAX_WRITEBACK_PORTS);
+        }
+        next = new IntermediateResult[writebackPorts];
+        vals = new byte[numRegs];
+        valid = new BitSet(numRegs);
+    }
+
+    int size() {
+        return vals.length;
+    }
+
+    void save(DataOutputStream out) throws IOException {
+        if (numNext != 0) {
+            throw new IllegalStateException("Checkpoint taken in the middle of a cycle");
         }
+        for (int r = 0; r != vals.length; ++r) {
+            out.writeBoolean(valid.get(r));
+            out.writeByte(vals[r]);
+        }
+        out.writeInt(toRetrieve1);
+        out.writeInt(toRetrieve2);
+    }
 
-        for (int i = 0; i != numToRead; ++i) {
-            String[] tokens = lines.get(i).split("<|,|>");
-            Register reg = Register.fromString(tokens[1]);
-            byte num = Byte.parseByte(tokens[2]);
-            vals[reg.getIndex()] = num;
+    void restore(DataInputStream in) throws IOException {
+        for (int r = 0; r != vals.length; ++r) {
+            valid.set(r, in.readBoolean());
+            vals[r] = in.readByte();
         }
+        toRetrieve1 = in.readInt();
+        toRetrieve2 = in.readInt();
     }
 
     public void setResultBuffer(DataRetriever<IntermediateResult> regRGF) {
@@ -483,54 +4883,77 @@ class RegisterFile implements Steppable, RegisterRetrieveSetter, DataRetriever<S
     }
 
     @Override
-    public String getOutputLine() {
-        StringBuilder sb = new StringBuilder("RGF:");
+    public void appendOutputLine(AsciiBuffer out) {
+        out.append("RGF:");
         int count = 0;
-        for (int i = 0; i != vals.length; ++i) {
-            if (vals[i] == -1) {
-                continue;
-            }
+        for (int i = valid.nextSetBit(0); i >= 0; i = valid.nextSetBit(i + 1)) {
             if (count > 0) {
-                sb.append(",");
+                out.append(',');
             }
-            sb.append("<R");
-            sb.append(i);
-            sb.append(",");
-            sb.append(vals[i]);
-            sb.append(">");
+            out.append('<');
+            out.appendRegister(i);
+            out.append(',');
+            out.append(vals[i]);
+            out.append('>');
             ++count;
         }
-        return sb.toString();
     }
 
 
     @Override
-    public boolean setRetrievingRegisters(Register r1, Register r2) {
+    public boolean setRetrievingRegisters(int r1, int r2) {
         toRetrieve1 = r1;
         toRetrieve2 = r2;
-        return vals[r1.getIndex()] != -1 && vals[r2.getIndex()] != -1;
+        return valid.get(r1) && valid.get(r2);
     }
 
     @Override
     public SourceRegisterDataSet getData() {
-        return new SourceRegisterDataSet(vals[toRetrieve1.getIndex()], vals[toRetrieve2.getIndex()]);
+        return retrieved.set(vals[toRetrieve1], vals[toRetrieve2]);
+    }
+
+    void write(int reg, byte value) {
+        vals[reg] = value;
+        valid.set(reg);
+    }
+
+    boolean isValid(int reg) {
+        return valid.get(reg);
+    }
+
+    long retired() {
+        return retired;
+    }
+
+    byte read(int reg) {
+        return vals[reg];
     }
 
     @Override
     public void fillBuffer() {
-        if (next == null) {
-            next = regRGF.getData();
+        while (numNext != next.length) {
+            IntermediateResult r = regRGF.getData();
+            if (r == null) {
+                break;
+            }
+            next[numNext++] = r;
         }
     }
 
     @Override
     public boolean step() {
-        if (next != null) {
-            vals[next.getDest().getIndex()] = next.getValue();
-            next = null;
-            return true;
+        if (numNext == 0) {
+            return false;
         }
-        return false;
+        // oldest first, so a later write to the same register wins
+        for (int i = 0; i != numNext; ++i) {
+            write(next[i].getDest(), next[i].getValue());
+            next[i].release();
+            next[i] = null;
+        }
+        retired += numNext;
+        numNext = 0;
+        return true;
     }
 }
 
@@ -544,11 +4967,36 @@ class InstructionBuffer implements Steppable {
     ValueInstruction issue1Data = null;
     ValueInstruction issue2Data = null;
 
+    private final TokenPool<ValueInstruction> pool = new TokenPool<>(ValueInstruction::new);
+
     public InstructionBuffer(DataRetriever<Instruction> instructionGenerator, DataRetriever<SourceRegisterDataSet> registerRetriever) {
         this.instructionGenerator = instructionGenerator;
         this.registerRetriever = registerRetriever;
     }
 
+    TokenPool<ValueInstruction> getPool() {
+        return pool;
+    }
+
+    // right after a step, a filled slot holds what was issued in it
+    boolean hasLoadIssue() {
+        return issue2Data != null;
+    }
+
+    boolean hasArithmeticIssue() {
+        return issue1Data != null;
+    }
+
+    void save(DataOutputStream out) throws IOException {
+        Instruction.saveToken(out, issue1Data);
+        Instruction.saveToken(out, issue2Data);
+    }
+
+    void restore(DataInputStream in) throws IOException {
+        issue1Data = Instruction.restoreToken(in, pool);
+        issue2Data = Instruction.restoreToken(in, pool);
+    }
+
     @Override
     public void fillBuffer() {}
 
@@ -561,10 +5009,17 @@ class InstructionBuffer implements Steppable {
         if (nextInstruction == null || nextRegisterData == null) {
             return false;
         }
+        // anything still sitting in an issue slot was never picked up, so it can be recycled
+        if (issue1Data != null) {
+            issue1Data.release();
+        }
+        if (issue2Data != null) {
+            issue2Data.release();
+        }
         issue1Data = null;
         issue2Data = null;
-        ValueInstruction data = new ValueInstruction(nextInstruction, nextRegisterData);
-        if (nextInstruction.getOpcode().equals("LD")) {
+        ValueInstruction data = pool.acquire().set(nextInstruction, nextRegisterData);
+        if (nextInstruction.getOpcode().isLoad()) {
             issue2Data = data;
         } else {
             issue1Data = data;
@@ -573,7 +5028,7 @@ class InstructionBuffer implements Steppable {
     }
 
     @Override
-    public String getOutputLine() {
+    public void appendOutputLine(AsciiBuffer out) {
         ValueInstruction dataToString = null;
         if (issue1Data != null && issue2Data != null) {
             throw new IllegalStateException("both issue1 and issue2 data exists");
@@ -582,11 +5037,10 @@ class InstructionBuffer implements Steppable {
         } else if (issue2Data != null) {
             dataToString = issue2Data;
         }
-        if (dataToString == null) {
-            return "INB:";
+        out.append("INB:");
+        if (dataToString != null) {
+            dataToString.appendTo(out);
         }
-        return "INB:" + dataToString.toString();
-
     }
 
     public DataRetriever<ValueInstruction> getIssue1DataRetriever() {
@@ -614,65 +5068,68 @@ class InstructionBuffer implements Steppable {
 
 class LoadInstructionBuffer extends BasicRegister<ValueInstruction, AddressDecodedInstruction> {
 
+    private final TokenPool<AddressDecodedInstruction> pool = new TokenPool<>(AddressDecodedInstruction::new);
+
     public LoadInstructionBuffer(DataRetriever<ValueInstruction> inSrc) {
         super("LIB", inSrc);
     }
 
+    TokenPool<AddressDecodedInstruction> getPool() {
+        return pool;
+    }
+
     @Override
     protected AddressDecodedInstruction convertData() {
-        return new AddressDecodedInstruction(
+        AddressDecodedInstruction out = pool.acquire().set(
                 getCurr(),
-                (byte)(getCurr().getRegister1Data() + getCurr().getRegister2Data())
+                getCurr().getRegister1Data() + getCurr().getRegister2Data()
         );
+        getCurr().release();
+        return out;
     }
 }
 
 class AddressBuffer extends BasicRegister<AddressDecodedInstruction, IntermediateResult> {
 
     private DataMemoryRetriever dmr;
+    private final TokenPool<IntermediateResult> pool = new TokenPool<>(IntermediateResult::new);
 
     public AddressBuffer(DataRetriever<AddressDecodedInstruction> inSrc, DataMemoryRetriever dmr) {
         super("ADB", inSrc);
         this.dmr = dmr;
     }
 
+    TokenPool<IntermediateResult> getPool() {
+        return pool;
+    }
+
     @Override
     public IntermediateResult convertData() {
-        return new IntermediateResult(getCurr(), dmr.getData(getCurr().getAddr()));
+        IntermediateResult out = pool.acquire().set(getCurr(), dmr.getData(getCurr().getAddr()));
+        getCurr().release();
+        return out;
     }
 }
 
 class ArithmeticInstructionBuffer extends BasicRegister<ValueInstruction, IntermediateResult> {
 
+    private final TokenPool<IntermediateResult> pool = new TokenPool<>(IntermediateResult::new);
+
     public ArithmeticInstructionBuffer(DataRetriever<ValueInstruction> inSrc) {
         super("AIB", inSrc);
     }
 
+    TokenPool<IntermediateResult> getPool() {
+        return pool;
+    }
+
     @Override
     public IntermediateResult convertData() {
         final byte val1 = getCurr().getRegister1Data();
         final byte val2 = getCurr().getRegister2Data();
-        int resultInt;
-        switch (getCurr().getOpcode()) {
-            case "ADD":
-                resultInt = val1 + val2;
-                break;
-
-            case "SUB":
-                resultInt = val1 - val2;
-                break;
-
-            case "AND":
-                resultInt = val1 & val2;
-                break;
-
-            case "OR":
-                resultInt = val1 | val2;
-                break;
-            default:
-                throw new IllegalStateException("OPCODE Not one of expected ops.");
-        }
-        return new IntermediateResult(getCurr(), (byte)resultInt);
+        IntermediateResult out = pool.acquire().set(getCurr(), getCurr().getOpcode().compute(val1, val2));
+        getCurr().release();
+        return out;
     }
 }
 
@@ -686,27 +5143,60 @@ class ResultBuffer implements Steppable, DataRetriever<IntermediateResult>  {
     IntermediateResult nextLoad = null;
     IntermediateResult nextALU = null;
 
-    // current stuff
-    Queue<IntermediateResult> q = new PriorityQueue<>();
+    // current stuff, handed out oldest first
+    ReorderBuffer<IntermediateResult> q = new ReorderBuffer<>();
 
     public ResultBuffer(DataRetriever<IntermediateResult> loadRetriever, DataRetriever<IntermediateResult> aluRetriever) {
         this.loadRetriever = loadRetriever;
         this.aluRetriever = aluRetriever;
     }
 
+    void save(DataOutputStream out) throws IOException {
+        if (nextLoad != null || nextALU != null) {
+            throw new IllegalStateException("Checkpoint taken in the middle of a cycle");
+        }
+        int count = 0;
+        for (int c = q.low(); c != q.high(); ++c) {
+            if (q.at(c) != null) {
+                ++count;
+            }
+        }
+        out.writeInt(count);
+        for (int c = q.low(); c != q.high(); ++c) {
+            IntermediateResult ir = q.at(c);
+            if (ir != null) {
+                out.writeBoolean(ir.getOpcode().isLoad());
+                ir.save(out);
+            }
+        }
+    }
+
+    // each result goes back to the pool of the buffer that produced it
+    void restore(DataInputStream in, TokenPool<IntermediateResult> loadPool, TokenPool<IntermediateResult> aluPool) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i != count; ++i) {
+            IntermediateResult ir = (in.readBoolean() ? loadPool : aluPool).acquire();
+            ir.restore(in);
+            q.add(ir);
+        }
+    }
+
     @Override
-    public String getOutputLine() {
-        StringBuilder sb = new StringBuilder("REB:");
+    public void appendOutputLine(AsciiBuffer out) {
+        out.append("REB:");
 
         int count = 0;
-        for(IntermediateResult ir : q) {
+        for (int c = q.low(); c != q.high(); ++c) {
+            IntermediateResult ir = q.at(c);
+            if (ir == null) {
+                continue;
+            }
             if (count != 0) {
-                sb.append(",");
+                out.append(',');
             }
-            sb.append(ir.toString());
+            ir.appendTo(out);
             ++count;
         }
-        return sb.toString();
     }
 
     @Override
@@ -735,4 +5225,8 @@ class ResultBuffer implements Steppable, DataRetriever<IntermediateResult>  {
     public IntermediateResult getData() {
         return q.poll();
     }
+
+    int size() {
+        return q.size();
+    }
 }